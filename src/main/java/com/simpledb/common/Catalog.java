@@ -64,8 +64,19 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
         Table table = new Table(file, name, pkeyField);
-        this.tables.put(file.getId(), table);
+        Table replaced = this.tables.put(file.getId(), table);
         this.name2Id.put(name, file.getId());
+        if (replaced != null && replaced.dbFile != file) {
+            close(replaced.dbFile);
+        }
+    }
+
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -136,6 +147,9 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (Table table : this.tables.values()) {
+            close(table.dbFile);
+        }
         this.tables.clear();
         this.name2Id.clear();
     }
@@ -7,6 +7,7 @@ import com.simpledb.storage.StringField;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /**
@@ -30,6 +31,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field decode(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public void encode(Field f, ByteBuffer buf, int offset) {
+            buf.putInt(offset, ((IntField) f).getValue());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -48,6 +59,32 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field decode(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte[] bs = new byte[strLen];
+            buf.get(offset + 4, bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
+
+        @Override
+        public void encode(Field f, ByteBuffer buf, int offset) {
+            String s = ((StringField) f).getValue();
+            if (s.length() > STRING_LEN) {
+                s = s.substring(0, STRING_LEN);
+            }
+            // same layout as StringField.serialize: length, low byte of each
+            // char, zero padding
+            buf.putInt(offset, s.length());
+            int pos = offset + 4;
+            for (int i = 0; i < s.length(); i++) {
+                buf.put(pos++, (byte) s.charAt(i));
+            }
+            for (int i = s.length(); i < STRING_LEN; i++) {
+                buf.put(pos++, (byte) 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -66,4 +103,24 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents are
+   *   decoded in place from the serialized form at the specified offset of
+   *   buf, as written by {@link Field#serialize}. The position of buf is not
+   *   changed.
+   * @param buf The buffer to read from
+   * @param offset The absolute offset of the field in buf
+   */
+    public abstract Field decode(ByteBuffer buf, int offset);
+
+  /**
+   * Writes the serialized form of f, as produced by {@link Field#serialize},
+   * in place at the specified offset of buf. Always writes {@link #getLen()}
+   * bytes. The position of buf is not changed.
+   * @param f The field to write. It must be of this type.
+   * @param buf The buffer to write to
+   * @param offset The absolute offset of the field in buf
+   */
+    public abstract void encode(Field f, ByteBuffer buf, int offset);
+
 }
@@ -7,6 +7,10 @@ import com.simpledb.storage.*;
 import com.simpledb.transaction.TransactionAbortedException;
 import com.simpledb.transaction.TransactionId;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -25,6 +29,8 @@ public class Insert extends Operator {
 
     private Tuple res;
 
+    private final int batchSize;
+
     /**
      * Constructor.
      *
@@ -40,7 +46,31 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
+        this(t, child, tableId, 1);
+    }
+
+    /**
+     * Constructor for an insert that hands tuples to the BufferPool in
+     * batches, letting the table lay out many tuples at once.
+     *
+     * @param t
+     *            The transaction running the insert.
+     * @param child
+     *            The child operator from which to read tuples to be inserted.
+     * @param tableId
+     *            The table in which to insert tuples.
+     * @param batchSize
+     *            The number of tuples per call to
+     *            {@link BufferPool#insertTuples}; 1 inserts one at a time.
+     * @throws DbException
+     *             if TupleDesc of child differs from table into which we are to
+     *             insert, or batchSize is not positive.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, int batchSize)
+            throws DbException {
         // some code goes here
+        if (batchSize < 1) throw new DbException("batch size must be positive");
+        this.batchSize = batchSize;
         this.tid = t;
         this.child = child;
         this.tableId = tableId;
@@ -93,6 +123,23 @@ public class Insert extends Operator {
         }
         res = new Tuple(new TupleDesc(new Type[]{Type.INT_TYPE}));
         int cnt = 0;
+        if (batchSize > 1) {
+            List<Tuple> batch = new ArrayList<>(batchSize);
+            while (child.hasNext()) {
+                batch.add(child.next());
+                if (batch.size() == batchSize || !child.hasNext()) {
+                    try {
+                        Database.getBufferPool().insertTuples(tid, tableId, batch);
+                        cnt += batch.size();
+                    } catch (IOException e) {
+                        throw new DbException(e.getMessage());
+                    }
+                    batch.clear();
+                }
+            }
+            res.setField(0, new IntField(cnt));
+            return res;
+        }
         while (child.hasNext()) {
             Tuple next = child.next();
             try {
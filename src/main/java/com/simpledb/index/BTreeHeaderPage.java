@@ -6,6 +6,7 @@ import com.simpledb.common.Type;
 import com.simpledb.storage.BufferPool;
 import com.simpledb.storage.Field;
 import com.simpledb.storage.IntField;
+import com.simpledb.storage.LogFile;
 import com.simpledb.storage.Page;
 import com.simpledb.transaction.TransactionId;
 
@@ -23,6 +24,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = LogFile.NO_LSN;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -273,6 +275,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -158,7 +158,7 @@ public class BTreeInternalPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
@@ -232,7 +232,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	protected byte[] serializePage() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -346,26 +346,31 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null entry.");
-		if(deleteRightChild) {
-			markSlotUsed(rid.getTupleNumber(), false);
-		}
-		else {
-			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
-					markSlotUsed(rid.getTupleNumber(), false);
-					break;
-				}	
+		beginChange();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null entry.");
+			if(deleteRightChild) {
+				markSlotUsed(rid.getTupleNumber(), false);
 			}
+			else {
+				for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+					if(isSlotUsed(i)) {
+						children[i] = children[rid.getTupleNumber()];
+						markSlotUsed(rid.getTupleNumber(), false);
+						break;
+					}	
+				}
+			}
+			e.setRecordId(null);
+		} finally {
+			endChange();
 		}
-		e.setRecordId(null);
 	}
 
 	/**
@@ -403,35 +408,40 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to update entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to update entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to update null entry.");
+		beginChange();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to update entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to update entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to update null entry.");
 		
-		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
-		}
-		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().getPageNumber();
-				break;
-			}	
+			for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be less than or equal to keys on the right");
+					}
+					break;
+				}	
+			}
+			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+				if(isSlotUsed(i)) {
+					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be greater than or equal to keys on the left");
+					}
+					children[i] = e.getLeftChild().getPageNumber();
+					break;
+				}	
+			}
+			children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
+			keys[rid.getTupleNumber()] = e.getKey();
+		} finally {
+			endChange();
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
 	}
 
 	/**
@@ -442,108 +452,113 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
-			throw new DbException("key field type mismatch, in insertEntry");
+		beginChange();
+		try {
+			if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+				throw new DbException("key field type mismatch, in insertEntry");
+
+			if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in insertEntry");
 
-		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
-			throw new DbException("table id mismatch in insertEntry");
+			if(childCategory == 0) {
+				if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+					throw new DbException("child page category mismatch in insertEntry");
 
-		if(childCategory == 0) {
-			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+				childCategory = e.getLeftChild().pgcateg();
+			}
+			else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 				throw new DbException("child page category mismatch in insertEntry");
 
-			childCategory = e.getLeftChild().pgcateg();
-		}
-		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
-			throw new DbException("child page category mismatch in insertEntry");
-
-		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().getPageNumber();
-			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
-			markSlotUsed(0, true);
-			markSlotUsed(1, true);
-			e.setRecordId(new RecordId(pid, 1));
-			return;
-		}
+			// if this is the first entry, add it and return
+			if(getNumEmptySlots() == getMaxEntries()) {
+				children[0] = e.getLeftChild().getPageNumber();
+				children[1] = e.getRightChild().getPageNumber();
+				keys[1] = e.getKey();
+				markSlotUsed(0, true);
+				markSlotUsed(1, true);
+				e.setRecordId(new RecordId(pid, 1));
+				return;
+			}
 
-		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+			// find the first empty slot, starting from 1
+			int emptySlot = -1;
+			for (int i=1; i<numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
+				}
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called insertEntry on page with no empty slots.");        
+			if (emptySlot == -1)
+				throw new DbException("called insertEntry on page with no empty slots.");        
 
-		// find the child pointer matching the left or right child in this entry
-		int lessOrEqKey = -1;
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
-					}
-					lessOrEqKey = i;
-					if(children[i] == e.getRightChild().getPageNumber()) {
-						children[i] = e.getLeftChild().getPageNumber();
+			// find the child pointer matching the left or right child in this entry
+			int lessOrEqKey = -1;
+			for (int i=0; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
+						if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().getPageNumber() + ", right child " +
+									e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						lessOrEqKey = i;
+						if(children[i] == e.getRightChild().getPageNumber()) {
+							children[i] = e.getLeftChild().getPageNumber();
+						}
 					}
-				}
-				else if(lessOrEqKey != -1) {
-					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
+					else if(lessOrEqKey != -1) {
+						// validate that the next key is greater than or equal to the one we are inserting
+						if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().getPageNumber() + ", right child " +
+									e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						break;
 					}
-					break;
 				}
 			}
-		}
 
-		if(lessOrEqKey == -1) {
-			throw new DbException("attempt to insert invalid entry with left child " + 
-					e.getLeftChild().getPageNumber() + ", right child " +
-					e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-					" HINT: one of these children must match an existing child on the page" +
-					" and this key must be correctly ordered in between that child's" +
-					" left and right keys");
-		}
+			if(lessOrEqKey == -1) {
+				throw new DbException("attempt to insert invalid entry with left child " + 
+						e.getLeftChild().getPageNumber() + ", right child " +
+						e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+						" HINT: one of these children must match an existing child on the page" +
+						" and this key must be correctly ordered in between that child's" +
+						" left and right keys");
+			}
 
-		// shift entries back or forward to fill empty slot and make room for new entry
-		// while keeping entries in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
+			// shift entries back or forward to fill empty slot and make room for new entry
+			// while keeping entries in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveEntry(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
 			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
+			else {
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveEntry(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new entry into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().getPageNumber();
-		e.setRecordId(new RecordId(pid, goodSlot));
+			// insert new entry into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
+			keys[goodSlot] = e.getKey();
+			children[goodSlot] = e.getRightChild().getPageNumber();
+			e.setRecordId(new RecordId(pid, goodSlot));
+		} finally {
+			endChange();
+		}
 	}
 
 	/**
@@ -149,7 +149,7 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
@@ -198,7 +198,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @see #BTreeLeafPage
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	protected byte[] serializePage() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -287,15 +287,20 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
-		RecordId rid = t.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete tuple with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete tuple on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null tuple.");
-		markSlotUsed(rid.getTupleNumber(), false);
-		t.setRecordId(null);
+		beginChange();
+		try {
+			RecordId rid = t.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete tuple with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete tuple on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null tuple.");
+			markSlotUsed(rid.getTupleNumber(), false);
+			t.setRecordId(null);
+		} finally {
+			endChange();
+		}
 	}
 
 	/**
@@ -307,55 +312,60 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
-		if (!t.getTupleDesc().equals(td))
-			throw new DbException("type mismatch, in addTuple");
-
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+		beginChange();
+		try {
+			if (!t.getTupleDesc().equals(td))
+				throw new DbException("type mismatch, in addTuple");
+
+			// find the first empty slot 
+			int emptySlot = -1;
+			for (int i=0; i<numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
+				}
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called addTuple on page with no empty slots.");
-
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
+			if (emptySlot == -1)
+				throw new DbException("called addTuple on page with no empty slots.");
+
+			// find the last key less than or equal to the key being inserted
+			int lessOrEqKey = -1;
+			Field key = t.getField(keyField);
+			for (int i=0; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+						lessOrEqKey = i;
+					else
+						break;	
+				}
 			}
-		}
 
-		// shift records back or forward to fill empty slot and make room for new record
-		// while keeping records in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
+			// shift records back or forward to fill empty slot and make room for new record
+			// while keeping records in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveRecord(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
 			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
+			else {
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveRecord(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new record into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		RecordId rid = new RecordId(pid, goodSlot);
-		t.setRecordId(rid);
-		tuples[goodSlot] = t;
+			// insert new record into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
+			RecordId rid = new RecordId(pid, goodSlot);
+			t.setRecordId(rid);
+			tuples[goodSlot] = t;
+		} finally {
+			endChange();
+		}
 	}
 
 	/**
@@ -400,17 +410,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			leftSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setLeftSiblingId");
+		beginChange();
+		try {
+			if(id == null) {
+				leftSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("leftSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setLeftSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("leftSibling must be a leaf node");
+				}
+				leftSibling = id.getPageNumber();
 			}
-			leftSibling = id.getPageNumber();
+		} finally {
+			endChange();
 		}
 	}
 
@@ -420,17 +435,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			rightSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRightSiblingId");
+		beginChange();
+		try {
+			if(id == null) {
+				rightSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("rightSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRightSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("rightSibling must be a leaf node");
+				}
+				rightSibling = id.getPageNumber();
 			}
-			rightSibling = id.getPageNumber();
+		} finally {
+			endChange();
 		}
 	}
 
@@ -5,10 +5,13 @@ import com.simpledb.common.Database;
 import com.simpledb.common.DbException;
 import com.simpledb.common.Type;
 import com.simpledb.storage.BufferPool;
+import com.simpledb.storage.LogFile;
 import com.simpledb.storage.Page;
 import com.simpledb.storage.TupleDesc;
 import com.simpledb.transaction.TransactionId;
 
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -20,6 +23,7 @@ import com.simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	private volatile long lsn = LogFile.NO_LSN;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -31,6 +35,16 @@ public abstract class BTreePage implements Page {
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
 
+	/** last image built by serializePage(), or null if the page changed since */
+	private volatile byte[] pageImage;
+
+	/**
+	 * held shared while the page image is built and exclusively while the
+	 * page is modified, so that an image never mixes old and new contents
+	 * and one built from the old contents is never cached after a change
+	 */
+	private final ReentrantReadWriteLock imageLatch = new ReentrantReadWriteLock();
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -81,6 +95,52 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The image is only rebuilt by {@link #serializePage} if the page has
+	 * been modified since it was last built; otherwise this returns a copy
+	 * of the previous image.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		imageLatch.readLock().lock();
+		try {
+			byte[] image = pageImage;
+			if (image == null) {
+				image = serializePage();
+				pageImage = image;
+			}
+			return image.clone();
+		} finally {
+			imageLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the on-disk image of this page from its current contents.
+	 */
+	protected abstract byte[] serializePage();
+
+	/**
+	 * Must be called by every method that modifies the contents of the page
+	 * before it does, with {@link #endChange} in a finally block after it.
+	 */
+	protected void beginChange() {
+		imageLatch.writeLock().lock();
+	}
+
+	/**
+	 * Ends a change begun with {@link #beginChange}, so that the next
+	 * getPageData() rebuilds the page image.
+	 */
+	protected void endChange() {
+		pageImage = null;
+		imageLatch.writeLock().unlock();
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -107,11 +167,16 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			parent = 0;
-		}
-		else {
-			parent = id.getPageNumber();
+		beginChange();
+		try {
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				parent = 0;
+			}
+			else {
+				parent = id.getPageNumber();
+			}
+		} finally {
+			endChange();
 		}
 	}
 
@@ -134,6 +199,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -0,0 +1,171 @@
+package com.simpledb.policy;
+
+import com.simpledb.storage.PageId;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) eviction over a fixed array of frames. Each frame
+ * has a reference bit that is set whenever its page is used; the clock hand
+ * sweeps the frames, clearing set bits, and evicts the first page whose bit
+ * is already clear.
+ * <p>
+ * {@link #touch} only sets a reference bit and may be called concurrently
+ * with anything, without locking. The other methods change the frames and
+ * must be called by one thread at a time, e.g. under the buffer pool latch.
+ * Skipping a page moves the hand past it, leaving its reference bit.
+ * Growing the clock adds free frames; shrinking it keeps the frames, which
+ * only lengthens the sweep.
+ */
+public class ClockPolicy implements EvictPolicy {
+
+    private PageId[] frames;
+
+    /** replaced when the clock grows; a bit set meanwhile may be lost */
+    private volatile AtomicIntegerArray referenced;
+
+    /** frame of each page in the clock */
+    private final Map<PageId, Integer> frameOf;
+
+    /** stack of frames that hold no page */
+    private int[] free;
+
+    private int numFree;
+
+    private int hand;
+
+    /** pages passed over since the last pop or remove */
+    private final Set<PageId> skipped = new HashSet<>();
+
+    public ClockPolicy(int size) {
+        this.frames = new PageId[size];
+        this.referenced = new AtomicIntegerArray(size);
+        this.frameOf = new ConcurrentHashMap<>(size);
+        this.free = new int[size];
+        for (int i = 0; i < size; i++) {
+            free[i] = size - 1 - i;
+        }
+        this.numFree = size;
+    }
+
+    @Override
+    public void put(PageId pageId) {
+        Integer frame = frameOf.get(pageId);
+        if (frame != null) {
+            referenced.set(frame, 1);
+            return;
+        }
+        if (numFree == 0) {
+            pop();
+        }
+        int f = free[--numFree];
+        frames[f] = pageId;
+        referenced.set(f, 0);
+        frameOf.put(pageId, f);
+    }
+
+    @Override
+    public void touch(PageId pageId) {
+        Integer frame = frameOf.get(pageId);
+        if (frame != null) {
+            referenced.lazySet(frame, 1);
+        }
+    }
+
+    @Override
+    public PageId peek() {
+        if (numFree + skipped.size() >= frames.length) {
+            skipped.clear();
+            return null;
+        }
+        return frames[sweep()];
+    }
+
+    @Override
+    public void skip(PageId pageId) {
+        skipped.add(pageId);
+        Integer frame = frameOf.get(pageId);
+        if (frame != null && frame == hand) {
+            hand = (hand + 1) % frames.length;
+        }
+    }
+
+    @Override
+    public PageId pop() {
+        if (numFree + skipped.size() >= frames.length) {
+            skipped.clear();
+            return null;
+        }
+        PageId victim = frames[sweep()];
+        evict(victim);
+        return victim;
+    }
+
+    @Override
+    public void evict(PageId pageId) {
+        Integer frame = frameOf.get(pageId);
+        if (frame != null) {
+            if (frame == hand) {
+                hand = (hand + 1) % frames.length;
+            }
+            release(frame);
+        }
+        skipped.clear();
+    }
+
+    /**
+     * Moves the hand to the next page that was not skipped and whose
+     * reference bit is clear, clearing the bits it passes. There must be
+     * such a page, or a referenced one, that was not skipped.
+     */
+    private int sweep() {
+        while (true) {
+            int f = hand;
+            if (frames[f] != null && !skipped.contains(frames[f])) {
+                if (referenced.get(f) == 0) {
+                    return f;
+                }
+                referenced.set(f, 0);
+            }
+            hand = (hand + 1) % frames.length;
+        }
+    }
+
+    @Override
+    public void remove(PageId pageId) {
+        Integer frame = frameOf.get(pageId);
+        if (frame != null) {
+            release(frame);
+        }
+        skipped.clear();
+    }
+
+    @Override
+    public void resize(int size) {
+        int old = frames.length;
+        if (size <= old) {
+            return;
+        }
+        frames = Arrays.copyOf(frames, size);
+        AtomicIntegerArray bits = new AtomicIntegerArray(size);
+        for (int i = 0; i < old; i++) {
+            bits.set(i, referenced.get(i));
+        }
+        referenced = bits;
+        free = Arrays.copyOf(free, size);
+        for (int i = size - 1; i >= old; i--) {
+            free[numFree++] = i;
+        }
+    }
+
+    private void release(int f) {
+        frameOf.remove(frames[f]);
+        frames[f] = null;
+        free[numFree++] = f;
+    }
+}
@@ -6,6 +6,46 @@ public interface EvictPolicy {
 
     void put(PageId pageId);
 
+    /**
+     * Records a use of a page already in the policy. Called on buffer pool
+     * hits without holding the buffer pool latch, so it must be thread-safe.
+     */
+    void touch(PageId pageId);
+
+    /**
+     * Returns the page pop() would evict next, leaving it in the policy, or
+     * null if there is none. Pages passed over with {@link #skip} are not
+     * returned again until the next pop() or remove(), or until peek() has
+     * returned null.
+     */
+    PageId peek();
+
+    /**
+     * Passes over a page peek() returned that the caller cannot evict now,
+     * keeping its place in the eviction order, so that the next peek() and
+     * pop() consider the page after it.
+     */
+    void skip(PageId pageId);
+
+    /**
+     * Evicts the page peek() would return and returns it, or null if there
+     * is none.
+     */
     PageId pop();
 
+    /**
+     * Evicts a page peek() returned. Unlike pop(), a use of another page
+     * since the peek() cannot change which page goes.
+     */
+    void evict(PageId pageId);
+
+    void remove(PageId pageId);
+
+    /**
+     * Sets the number of pages the policy is sized for, when the cache it
+     * serves grows or shrinks. The policy holds no more pages than the new
+     * size when this is called.
+     */
+    void resize(int size);
+
 }
@@ -2,10 +2,16 @@ package com.simpledb.policy;
 
 import com.simpledb.storage.PageId;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class FIFOPolicy implements EvictPolicy {
 
     private FIFOQueue<PageId> queue;
 
+    /** pages passed over since the last pop or remove */
+    private final Set<PageId> skipped = new HashSet<>();
+
     public FIFOPolicy(int size) {
         queue = new FIFOQueue<>(size);
     }
@@ -15,8 +21,50 @@ public class FIFOPolicy implements EvictPolicy {
         queue.add(pageId);
     }
 
+    @Override
+    public void touch(PageId pageId) {
+        // insertion order only
+    }
+
+    @Override
+    public PageId peek() {
+        for (PageId pid : queue) {
+            if (!skipped.contains(pid)) {
+                return pid;
+            }
+        }
+        skipped.clear();
+        return null;
+    }
+
+    @Override
+    public void skip(PageId pageId) {
+        skipped.add(pageId);
+    }
+
     @Override
     public PageId pop() {
-        return queue.pop();
+        PageId victim = peek();
+        if (victim != null) {
+            queue.remove(victim);
+        }
+        skipped.clear();
+        return victim;
+    }
+
+    @Override
+    public void evict(PageId pageId) {
+        remove(pageId);
+    }
+
+    @Override
+    public void remove(PageId pageId) {
+        queue.remove(pageId);
+        skipped.clear();
+    }
+
+    @Override
+    public void resize(int size) {
+        // insertion order does not depend on the size
     }
 }
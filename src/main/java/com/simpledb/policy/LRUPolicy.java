@@ -2,6 +2,8 @@ package com.simpledb.policy;
 
 import com.simpledb.storage.PageId;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class LRUPolicy implements EvictPolicy {
@@ -24,6 +26,9 @@ public class LRUPolicy implements EvictPolicy {
 
     private int size;
 
+    /** pages passed over since the last pop or remove */
+    private final Set<PageId> skipped = new HashSet<>();
+
     public LRUPolicy(int size) {
         this.size = size;
         this.head = new Node(null);
@@ -34,29 +39,84 @@ public class LRUPolicy implements EvictPolicy {
     }
 
     @Override
-    public void put(PageId pageId) {
-        if (cache.size() >= size) pop();
-        if (cache.contains(pageId)) {
-            Node node = cache.get(pageId);
-            cache.remove(node.value);
+    public synchronized void put(PageId pageId) {
+        Node node = cache.get(pageId);
+        if (node != null) {
             this.remove(node);
             this.add(node);
-        } else {
-            Node node = new Node(pageId);
-            cache.put(pageId, node);
+            return;
+        }
+        if (cache.size() >= size) pop();
+        node = new Node(pageId);
+        cache.put(pageId, node);
+        this.add(node);
+    }
+
+    @Override
+    public synchronized void touch(PageId pageId) {
+        Node node = cache.get(pageId);
+        if (node != null) {
+            this.remove(node);
             this.add(node);
         }
     }
 
     @Override
-    public PageId pop() {
-        Node node = this.tail.prev;
-        node.prev.next = node.next;
-        node.next.prev = node.prev;
+    public synchronized PageId peek() {
+        Node node = victim();
+        if (node == null) {
+            skipped.clear();
+            return null;
+        }
+        return node.value;
+    }
+
+    @Override
+    public synchronized void skip(PageId pageId) {
+        skipped.add(pageId);
+    }
+
+    @Override
+    public synchronized PageId pop() {
+        Node node = victim();
+        skipped.clear();
+        if (node == null) {
+            return null;
+        }
+        this.remove(node);
         cache.remove(node.value);
         return node.value;
     }
 
+    @Override
+    public synchronized void evict(PageId pageId) {
+        remove(pageId);
+    }
+
+    @Override
+    public synchronized void remove(PageId pageId) {
+        Node node = cache.remove(pageId);
+        if (node != null) {
+            this.remove(node);
+        }
+        skipped.clear();
+    }
+
+    @Override
+    public synchronized void resize(int size) {
+        this.size = size;
+    }
+
+    /** Returns the least recently used node that was not skipped, or null. */
+    private Node victim() {
+        for (Node node = tail.prev; node != head; node = node.prev) {
+            if (!skipped.contains(node.value)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
     private void add(Node node) {
         node.prev = head;
         node.next = head.next;
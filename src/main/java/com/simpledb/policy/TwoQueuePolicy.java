@@ -0,0 +1,140 @@
+package com.simpledb.policy;
+
+import com.simpledb.storage.PageId;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Scan-resistant 2Q eviction. Pages enter a probationary FIFO queue (A1in)
+ * and are evicted from it first, so a page touched only once, e.g. by a
+ * sequential scan, never pushes out the working set. A page that is used
+ * again while probationary has shown reuse and moves to the protected LRU
+ * queue (Am). Evicted probationary pages are also remembered in a ghost
+ * queue (A1out), so a page read again soon after its eviction goes straight
+ * to the protected queue.
+ * <p>
+ * See Johnson and Shasha, "2Q: A Low Overhead High Performance Buffer
+ * Management Replacement Algorithm", VLDB 1994.
+ */
+public class TwoQueuePolicy implements EvictPolicy {
+
+    /** probationary pages, oldest first */
+    private final LinkedHashSet<PageId> in = new LinkedHashSet<>();
+
+    /** ids of pages recently evicted from the probationary queue, oldest first */
+    private final LinkedHashSet<PageId> out = new LinkedHashSet<>();
+
+    /** protected pages, least recently used first */
+    private final LinkedHashSet<PageId> main = new LinkedHashSet<>();
+
+    /** probationary pages kept before evicting from it */
+    private int inSize;
+
+    /** number of ghosts remembered */
+    private int outSize;
+
+    /** pages passed over since the last pop or remove */
+    private final Set<PageId> skipped = new HashSet<>();
+
+    public TwoQueuePolicy(int size) {
+        resize(size);
+    }
+
+    @Override
+    public synchronized void resize(int size) {
+        // the tuning suggested in the paper: 25% probationary, ghosts for 50%
+        this.inSize = Math.max(1, size / 4);
+        this.outSize = Math.max(1, size / 2);
+        while (out.size() > outSize) {
+            out.remove(out.iterator().next());
+        }
+    }
+
+    @Override
+    public synchronized void put(PageId pageId) {
+        if (main.contains(pageId) || in.contains(pageId)) {
+            touch(pageId);
+        } else if (out.remove(pageId)) {
+            main.add(pageId);
+        } else {
+            in.add(pageId);
+        }
+    }
+
+    @Override
+    public synchronized void touch(PageId pageId) {
+        // BufferPool touches a page once per getPage, not once per tuple, so
+        // a second touch is treated as reuse rather than a correlated access
+        if (main.remove(pageId) || in.remove(pageId)) {
+            main.add(pageId);
+        }
+    }
+
+    @Override
+    public synchronized PageId peek() {
+        PageId victim = victim();
+        if (victim == null) {
+            skipped.clear();
+        }
+        return victim;
+    }
+
+    @Override
+    public synchronized void skip(PageId pageId) {
+        skipped.add(pageId);
+    }
+
+    @Override
+    public synchronized PageId pop() {
+        PageId victim = victim();
+        skipped.clear();
+        if (victim != null) {
+            evict(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public synchronized void evict(PageId pageId) {
+        if (in.remove(pageId)) {
+            out.add(pageId);
+            if (out.size() > outSize) {
+                out.remove(out.iterator().next());
+            }
+        } else {
+            main.remove(pageId);
+        }
+        skipped.clear();
+    }
+
+    @Override
+    public synchronized void remove(PageId pageId) {
+        if (!in.remove(pageId)) {
+            main.remove(pageId);
+        }
+        skipped.clear();
+    }
+
+    /**
+     * Returns the next page to evict that was not skipped: the oldest
+     * probationary page if that queue is over its share or nothing is
+     * protected, else the least recently used protected page, falling back
+     * on the other queue once every page of the first was skipped.
+     */
+    private PageId victim() {
+        boolean inFirst = in.size() > inSize || main.isEmpty();
+        PageId victim = firstNotSkipped(inFirst ? in : main);
+        return victim != null ? victim : firstNotSkipped(inFirst ? main : in);
+    }
+
+    private PageId firstNotSkipped(LinkedHashSet<PageId> queue) {
+        for (PageId pid : queue) {
+            if (!skipped.contains(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
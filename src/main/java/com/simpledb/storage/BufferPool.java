@@ -6,13 +6,27 @@ import com.simpledb.common.Permissions;
 import com.simpledb.policy.EvictPolicy;
 import com.simpledb.policy.LRUPolicy;
 import com.simpledb.transaction.LockManager;
+import com.simpledb.transaction.LockMode;
 import com.simpledb.transaction.TransactionAbortedException;
 import com.simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -22,6 +36,34 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The cached pages are split into shards by PageId hash. Each shard has its
+ * own page table, eviction policy and latch, so threads working on
+ * different pages rarely contend. A shard latch is never held while doing
+ * I/O or acquiring another lock.
+ * <p>
+ * Optionally, page images are kept off the Java heap in a {@link FrameArena}
+ * of numPages frames allocated up front. Cached pages that support it (see
+ * {@link FramedPage}) are bound to a frame while they are in the pool.
+ * <p>
+ * By default a commit forces the transaction's dirty pages to disk. In
+ * NO-FORCE mode (see {@link #setNoForce}) a commit only logs them and forces
+ * the log; a {@link PageCleaner} thread writes them back in the background.
+ * By default only clean pages are evicted (NO-STEAL). In STEAL mode (see
+ * {@link #setSteal}) a dirty page may be evicted once its before-image is
+ * in the log, and aborts and recovery undo it from the log.
+ * <p>
+ * For each page whose logged changes may not be on disk yet, the pool
+ * remembers the LSN from which the log is needed to redo them. This dirty
+ * page table is what a fuzzy checkpoint records instead of writing pages
+ * (see {@link #getDirtyPageTable}).
+ * <p>
+ * Pages are locked under a hierarchy: before locking a page, a transaction
+ * takes an intention lock (IS or IX) on the page's table. Once it has
+ * locked more than the escalation threshold of pages in one table (see
+ * {@link #setEscalationThreshold}), it locks the whole table in S or X
+ * instead and takes no more page locks there, so a large scan ends up
+ * holding a single table lock.
  *
  * @Threadsafe, all fields are final
  */
@@ -36,13 +78,91 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private int numPages;
+    /** Number of background threads used to service prefetch requests. */
+    private static final int IO_THREADS = 2;
+
+    /** Upper bound on the number of shards picked by default. */
+    private static final int MAX_SHARDS = 16;
+
+    /** Minimum number of pages per shard picked by default. */
+    private static final int MIN_SHARD_PAGES = 64;
+
+    /** Pages of one table a transaction may lock before it locks the table. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 256;
+
+    private final int numPages;
+
+    private final Shard[] shards;
+
+    private final LockManager lockManager;
+
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /** number of pages each active transaction has locked in each table */
+    private final Map<TransactionId, Map<Integer, Integer>> pagesLocked = new ConcurrentHashMap<>();
+
+    /** off-heap frames for page images, or null to keep them on the heap */
+    private final FrameArena arena;
+
+    /** how long the page cleaner sleeps when there is nothing to write */
+    private static final long CLEANER_INTERVAL_MILLIS = 100;
+
+    /**
+     * how long a page of an active transaction stays dirty before the page
+     * cleaner writes it under STEAL
+     */
+    private static final long STEAL_AGE_MILLIS = 500;
+
+    /**
+     * when each dirty page was first dirtied since it was last written or
+     * logged; entries of pages that are clean again are dropped lazily
+     */
+    private final Map<PageId, Long> dirtiedAt = new ConcurrentHashMap<>();
+
+    /**
+     * pages whose committed contents are not on disk yet, mapped to the
+     * commit sequence number that last added them
+     */
+    private final Map<PageId, Long> unflushed = new ConcurrentHashMap<>();
+
+    /**
+     * the dirty page table: pages whose logged changes may not be on disk,
+     * mapped to an LSN at or before the first such change
+     */
+    private final Map<PageId, Long> recLsns = new ConcurrentHashMap<>();
+
+    private final AtomicLong commitSeq = new AtomicLong();
+
+    private volatile PageCleaner cleaner;
+
+    private volatile boolean steal = false;
+
+    /**
+     * pages each active transaction dirtied that were written before it
+     * completed, and so are cached as clean pages holding its changes.
+     * Such a page keeps its recLSN until the transaction completes, since
+     * redo of the transaction's later records of the page needs its
+     * earlier ones.
+     */
+    private final Map<TransactionId, Set<PageId>> written = new ConcurrentHashMap<>();
 
-    private Map<PageId, Page> pageCache;
+    /**
+     * pages each active transaction appended to a file without caching
+     * them, mapped to the before-images that undo the append on abort
+     */
+    private final Map<TransactionId, Map<PageId, Page>> appended = new ConcurrentHashMap<>();
+
+    /**
+     * held shared by each insert or delete of an active transaction, and
+     * exclusively to steal one of its pages, so that a page is never written
+     * while its dirtier is in the middle of changing it
+     */
+    private final Map<TransactionId, ReentrantReadWriteLock> updateLatches = new ConcurrentHashMap<>();
 
-    private EvictPolicy evictPolicy;
+    /** pages the I/O executor is reading ahead that it has not cached yet */
+    private final Map<PageId, Future<Page>> prefetched;
 
-    private LockManager lockManager;
+    private volatile ExecutorService ioExecutor;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -51,10 +171,308 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
+        this(numPages, LRUPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * the policies made by policyFactory, e.g. {@code ClockPolicy::new}.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory creates the eviction policy of each shard, given
+     *                      the number of pages the shard holds.
+     */
+    public BufferPool(int numPages, IntFunction<EvictPolicy> policyFactory) {
+        this(numPages, Math.max(1, Math.min(MAX_SHARDS, numPages / MIN_SHARD_PAGES)), policyFactory);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split over
+     * numShards shards. Each shard starts with an equal share of the pages;
+     * a shard that only holds dirty pages takes a slot from another shard
+     * instead of failing.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independently latched shards, between 1
+     *                  and numPages.
+     */
+    public BufferPool(int numPages, int numShards) {
+        this(numPages, numShards, LRUPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split over
+     * numShards shards that evict with the policies made by policyFactory.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independently latched shards, between 1
+     *                  and numPages.
+     * @param policyFactory creates the eviction policy of each shard, given
+     *                      the number of pages the shard holds.
+     */
+    public BufferPool(int numPages, int numShards, IntFunction<EvictPolicy> policyFactory) {
+        this(numPages, numShards, policyFactory, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split over
+     * numShards shards that evict with the policies made by policyFactory.
+     * If offHeap is set, numPages page-sized frames are allocated outside
+     * the Java heap up front, and cached page images live there.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independently latched shards, between 1
+     *                  and numPages.
+     * @param policyFactory creates the eviction policy of each shard, given
+     *                      the number of pages the shard holds.
+     * @param offHeap whether to keep page images in an off-heap arena.
+     */
+    public BufferPool(int numPages, int numShards, IntFunction<EvictPolicy> policyFactory, boolean offHeap) {
+        if (numShards < 1 || numShards > Math.max(1, numPages)) {
+            throw new IllegalArgumentException("invalid number of shards: " + numShards);
+        }
         this.numPages = numPages;
-        this.pageCache = new ConcurrentHashMap<>();
-        this.evictPolicy = new LRUPolicy(numPages);
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            // spread the remainder over the first shards
+            int capacity = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+            // a shard can grow past its share by taking slots from others,
+            // and resizes its policy when it does
+            shards[i] = new Shard(capacity, policyFactory.apply(Math.max(1, capacity)), arena, unflushed);
+        }
         this.lockManager = new LockManager();
+        this.prefetched = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the arena holding cached page images, or null if they are kept
+     * on the Java heap.
+     */
+    public FrameArena getFrameArena() {
+        return arena;
+    }
+
+    /**
+     * Switches between FORCE and NO-FORCE commits. With NO-FORCE, a commit
+     * logs the transaction's dirty pages and forces the log instead of
+     * writing the pages, and a background {@link PageCleaner} writes them
+     * back later. Switching back to FORCE stops the cleaner and writes out
+     * everything it has not written yet.
+     *
+     * @param noForce whether commits should skip writing pages
+     */
+    public synchronized void setNoForce(boolean noForce) throws IOException {
+        if (noForce && cleaner == null) {
+            cleaner = new PageCleaner(this, CLEANER_INTERVAL_MILLIS, STEAL_AGE_MILLIS);
+            cleaner.start();
+        } else if (!noForce && cleaner != null) {
+            cleaner.shutdown();
+            cleaner = null;
+            cleanPages(null);
+        }
+    }
+
+    /**
+     * Returns true if commits do not write pages (see {@link #setNoForce}).
+     */
+    public boolean isNoForce() {
+        return cleaner != null;
+    }
+
+    /**
+     * Switches between NO-STEAL and STEAL eviction. With STEAL, when a
+     * shard holds only dirty pages, one of them is written to disk after
+     * logging its before-image and forcing the log, and is then evicted,
+     * instead of failing with "all dirty pages". Aborts must then go
+     * through {@link LogFile#logAbort}, which restores stolen pages from
+     * the log. With NO-FORCE, the page cleaner also writes pages that have
+     * been dirty for a while, the same way.
+     *
+     * @param steal whether dirty pages of active transactions may be evicted
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * Sets how many pages of one table a transaction may lock before its
+     * next lock in that table escalates to a lock on the whole table.
+     *
+     * @param escalationThreshold the number of page locks per table
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /**
+     * Returns true if dirty pages may be evicted (see {@link #setSteal}).
+     */
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Returns the number of pages holding committed changes that have not
+     * been written to disk yet.
+     */
+    public int numUnflushedPages() {
+        return unflushed.size();
+    }
+
+    /**
+     * Returns a snapshot of the dirty page table: every page that may have
+     * logged changes that are not on disk yet, mapped to an LSN at or
+     * before the first of them. Redo of such a page may start at that LSN.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(recLsns);
+    }
+
+    /**
+     * Returns the number of shards the cached pages are split into.
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * Caches a page in its shard, evicting a clean page if the shard is
+     * full. If every page of the shard is dirty, a slot is moved over from
+     * another shard that can spare one.
+     *
+     * @param tid the transaction the page is cached for
+     * @param page the page to cache
+     * @param replace whether to replace a cached version of the page; if
+     *                false, a cached version wins over page
+     * @return the cached page
+     * @throws DbException if every page in the pool is dirty
+     */
+    private Page cachePage(TransactionId tid, Page page, boolean replace) throws DbException {
+        Shard shard = shardFor(page.getId());
+        while (true) {
+            Page cached = shard.put(page, replace);
+            if (cached != null) {
+                return cached;
+            }
+            if (!borrowSlot(shard) && !cleanShard(shard) && !stealPage(tid, shard)) {
+                throw new DbException("all dirty pages");
+            }
+        }
+    }
+
+    /**
+     * Writes the unflushed pages of a shard that has no clean victim left,
+     * for when the page cleaner has fallen behind.
+     *
+     * @return true if any page became evictable
+     */
+    private boolean cleanShard(Shard shard) throws DbException {
+        try {
+            return cleanPages(shard) > 0;
+        } catch (IOException e) {
+            throw new DbException(e.getMessage());
+        }
+    }
+
+    /**
+     * STEAL: writes the eviction victim of a shard that only holds dirty
+     * pages, so that it can be evicted. flushPage logs its before-image and
+     * forces the log before the page is written. A page of another
+     * transaction is only written while that transaction is between
+     * updates, holding its update latch so that none starts meanwhile; one
+     * in the middle of an update keeps its pages. tid's own pages are not
+     * being changed while tid waits here for a page.
+     *
+     * @param tid the transaction the page is made room for
+     * @return true if a page was written
+     */
+    private boolean stealPage(TransactionId tid, Shard shard) throws DbException {
+        if (!steal) {
+            return false;
+        }
+        Page victim = shard.victim();
+        return victim != null && writeDirty(tid, victim);
+    }
+
+    /**
+     * Writes a page of an active transaction, as stealPage does.
+     *
+     * @param tid the transaction asking, or null for the page cleaner
+     * @return true if the page was written, false if it is clean or its
+     *         dirtier is in the middle of an update
+     */
+    private boolean writeDirty(TransactionId tid, Page victim) throws DbException {
+        TransactionId dirtier = victim.isDirty();
+        if (dirtier == null) {
+            return false;
+        }
+        Lock quiesced = dirtier.equals(tid) ? null : updateLatch(dirtier).writeLock();
+        if (quiesced != null && !quiesced.tryLock()) {
+            return false;
+        }
+        try {
+            if (victim.isDirty() != null) {
+                flushPage(victim);
+            }
+        } catch (IOException e) {
+            throw new DbException(e.getMessage());
+        } finally {
+            if (quiesced != null) {
+                quiesced.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * STEAL: writes the pages that were dirtied at least maxAgeMillis ago
+     * and are still dirty, as stealPage does. Run by the page cleaner, so
+     * that an active transaction's old pages reach disk before eviction
+     * needs their slots.
+     *
+     * @return the number of pages written
+     */
+    int writeOldPages(long maxAgeMillis) throws DbException {
+        if (!steal) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<PageId, Long> entry : dirtiedAt.entrySet()) {
+            if (now - entry.getValue() < maxAgeMillis) {
+                continue;
+            }
+            PageId pid = entry.getKey();
+            Page page = shardFor(pid).peek(pid);
+            if (page == null || page.isDirty() == null) {
+                dirtiedAt.remove(pid, entry.getValue());
+            } else if (writeDirty(null, page)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private ReentrantReadWriteLock updateLatch(TransactionId tid) {
+        return updateLatches.computeIfAbsent(tid, t -> new ReentrantReadWriteLock());
+    }
+
+    private boolean borrowSlot(Shard shard) {
+        for (Shard other : shards) {
+            // shard latches are taken one at a time, never nested
+            if (other != shard && other.releaseSlot()) {
+                shard.addSlot();
+                return true;
+            }
+        }
+        return false;
     }
 
     public static int getPageSize() {
@@ -89,26 +507,147 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        long start = System.currentTimeMillis();
-        while (true) {
-            try {
-                if (lockManager.acquireLock(tid, perm, pid)) {
-                    break;
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        lockPage(tid, pid, perm);
+        Shard shard = shardFor(pid);
+        Page page = shard.get(pid);
+        if (page != null) {
+            return page;
         }
-        if (!pageCache.containsKey(pid)) {
+        // read without holding the shard latch; if another thread loaded
+        // the page meanwhile, its copy wins
+        page = takePrefetched(pid);
+        if (page == null) {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = dbFile.readPage(pid);
+        }
+        return cachePage(tid, page, false);
+    }
+
+    /**
+     * Acquire a lock on the specified page without bringing it into the
+     * buffer pool. Used by DbFiles that create pages outside of the pool,
+     * e.g. for bulk appends. May block if the lock is held by another
+     * transaction.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     */
+    void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        TableLock table = new TableLock(pid.getTableId());
+        LockMode mode = LockMode.of(perm);
+        LockMode tableMode = lockManager.heldMode(tid, table);
+        if (tableMode != null && tableMode.covers(mode)) {
+            return;
+        }
+        Map<Integer, Integer> counts = pagesLocked.computeIfAbsent(tid, k -> new ConcurrentHashMap<>());
+        if (counts.getOrDefault(table.tableId, 0) >= escalationThreshold) {
+            // combined with the intention lock held: S, SIX or X
+            lockManager.acquireLock(tid, mode, table);
+            return;
+        }
+        lockManager.acquireLock(tid, mode == LockMode.S ? LockMode.IS : LockMode.IX, table);
+        if (lockManager.acquireLock(tid, mode, pid)) {
+            counts.merge(table.tableId, 1, Integer::sum);
+        }
+    }
+
+    /** The lock on a whole table, as opposed to the locks on its pages. */
+    private static final class TableLock {
+        final int tableId;
+
+        TableLock(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableLock && ((TableLock) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId);
+        }
+    }
+
+    /**
+     * Asynchronously read the specified page from disk so that a later
+     * {@link #getPage} can skip the synchronous read. No lock is acquired;
+     * the page is only handed out through getPage, which still locks it.
+     * <p>
+     * Once read, the page is cached as a clean page, which the shard may
+     * evict like any other, so read-ahead a scan never gets to does not pin
+     * memory. It is dropped instead if the shard holds only dirty pages.
+     * <p>
+     * This is only a hint: it does nothing if the page is already cached or
+     * being prefetched, or if too many reads are in flight.
+     *
+     * @param pid the ID of the page to read ahead
+     */
+    public void prefetchPage(PageId pid) {
+        Shard shard = shardFor(pid);
+        if (shard.contains(pid) || prefetched.containsKey(pid) || prefetched.size() >= numPages) {
+            return;
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        AtomicReference<Future<Page>> self = new AtomicReference<>();
+        FutureTask<Page> task = new FutureTask<>(() -> {
             Page page = dbFile.readPage(pid);
-            if (pageCache.size() >= numPages) {
-                evictPage();
+            // under the shard latch, so that a discardPage that removed the
+            // read from prefetched also finds the page in the shard
+            synchronized (shard) {
+                if (prefetched.remove(pid, self.get())) {
+                    shard.put(page, false);
+                }
+            }
+            return page;
+        });
+        self.set(task);
+        if (prefetched.putIfAbsent(pid, task) == null) {
+            ioExecutor().execute(task);
+        }
+    }
+
+    /**
+     * Claim a page that {@link #prefetchPage} is still reading, waiting for
+     * the read to finish.
+     *
+     * @return the prefetched page, or null if there is none
+     */
+    private Page takePrefetched(PageId pid) {
+        Future<Page> future = prefetched.remove(pid);
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // fall back to a synchronous read, which reports the error
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private ExecutorService ioExecutor() {
+        ExecutorService executor = ioExecutor;
+        if (executor == null) {
+            synchronized (prefetched) {
+                executor = ioExecutor;
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(IO_THREADS, r -> {
+                        Thread t = new Thread(r, "BufferPool-io");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    ioExecutor = executor;
+                }
             }
-            evictPolicy.put(pid);
-            pageCache.put(pid, page);
         }
-        return pageCache.get(pid);
+        return executor;
     }
 
     /**
@@ -122,7 +661,15 @@ public class BufferPool {
      */
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
+        // a page covered by a table lock stays locked until tid completes
+        if (!lockManager.isHoldsLock(tid, pid)) {
+            return;
+        }
         lockManager.releaseLock(tid, pid);
+        Map<Integer, Integer> counts = pagesLocked.get(tid);
+        if (counts != null) {
+            counts.computeIfPresent(pid.getTableId(), (table, n) -> n > 1 ? n - 1 : null);
+        }
     }
 
     /**
@@ -136,11 +683,18 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
-    /** Return true if the specified transaction has a lock on the specified page */
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * page, either on the page itself or on its whole table
+     */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return lockManager.isHoldsLock(tid, p);
+        if (lockManager.isHoldsLock(tid, p)) {
+            return true;
+        }
+        LockMode tableMode = lockManager.heldMode(tid, new TableLock(p.getTableId()));
+        return tableMode != null && tableMode.covers(LockMode.S);
     }
 
     /**
@@ -156,7 +710,11 @@ public class BufferPool {
         if (commit) {
             // commit
             try {
-                flushPages(tid);
+                if (cleaner != null) {
+                    logPages(tid);
+                } else {
+                    flushPages(tid);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -164,20 +722,108 @@ public class BufferPool {
             // abort
             recoverPages(tid);
         }
+        completeWritten(tid, commit);
+        completeAppended(tid, commit);
+        pagesLocked.remove(tid);
+        updateLatches.remove(tid);
         lockManager.transactionComplete(tid);
     }
 
-    private void recoverPages(TransactionId tid) {
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            Page page = entry.getValue();
-            if (page.isDirty() != null && page.isDirty().equals(tid)) {
-                page = page.getBeforeImage();
-                page.markDirty(false, null);
-                pageCache.put(page.getId(), page);
+    /**
+     * Finishes the pages tid dirtied that were written while it was active.
+     * On commit their contents become the before-image of the next update,
+     * and those the page cleaner need not write leave the dirty page table.
+     * On abort any that are still cached are restored to their before-image,
+     * on disk as well as in the cache; LogFile.rollback has normally done so
+     * already and discarded them.
+     */
+    private void completeWritten(TransactionId tid, boolean commit) {
+        Set<PageId> pids = written.remove(tid);
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            if (commit && !unflushed.containsKey(pid)) {
+                recLsns.remove(pid);
+            }
+            Page page = shardFor(pid).peek(pid);
+            if (page == null) {
+                continue;
+            }
+            synchronized (page) {
+                if (page.isDirty() != null) {
+                    // dirtied again, and handled by flushPages or recoverPages
+                    continue;
+                }
+                if (commit) {
+                    page.setBeforeImage();
+                    continue;
+                }
+            }
+            discardPage(pid);
+            try {
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page.getBeforeImage());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Enters pages tid is about to log and write straight to their file,
+     * bypassing the cache, into the dirty page table, so that a checkpoint
+     * taken before they are on disk keeps their redo. Must be called before
+     * their records are logged, with tid holding their exclusive locks.
+     */
+    void beginAppend(TransactionId tid, List<? extends Page> pages) {
+        long lsn = Database.getLogFile().getEndLsn();
+        Map<PageId, Page> befores = appended.computeIfAbsent(tid, t -> new ConcurrentHashMap<>());
+        for (Page page : pages) {
+            recLsns.putIfAbsent(page.getId(), lsn);
+            befores.putIfAbsent(page.getId(), page.getBeforeImage());
+        }
+    }
+
+    /**
+     * Removes appended pages from the dirty page table once they have been
+     * written and forced to their file.
+     */
+    void endAppend(List<? extends Page> pages) {
+        for (Page page : pages) {
+            if (!isWritten(page.getId())) {
+                recLsns.remove(page.getId());
             }
         }
     }
 
+    /**
+     * Finishes the pages tid appended. On abort they are written back as
+     * their before-images, so that an abort that does not go through
+     * LogFile.rollback leaves none of them behind. Runs after
+     * completeWritten, which may write a page tid dirtied after appending
+     * it back to its appended contents.
+     */
+    private void completeAppended(TransactionId tid, boolean commit) {
+        Map<PageId, Page> befores = appended.remove(tid);
+        if (befores == null || commit) {
+            return;
+        }
+        for (Page before : befores.values()) {
+            discardPage(before.getId());
+            try {
+                Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void recoverPages(TransactionId tid) {
+        for (Shard shard : shards) {
+            shard.recover(tid);
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -197,11 +843,41 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pages = dbFile.insertTuple(tid, t);
-        pages.forEach(e -> {
-            e.markDirty(true, tid);
-            pageCache.put(e.getId(), e);
-        });
+        Lock updating = updateLatch(tid).readLock();
+        updating.lock();
+        try {
+            List<Page> pages = dbFile.insertTuple(tid, t);
+            for (Page page : pages) {
+                markDirty(tid, page);
+            }
+        } finally {
+            updating.unlock();
+        }
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, letting the DbFile lay them out in bulk (see
+     * {@link DbFile#insertTuples}). Pages of the pool dirtied by the
+     * operation are marked dirty just as for {@link #insertTuple}.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        Lock updating = updateLatch(tid).readLock();
+        updating.lock();
+        try {
+            List<Page> pages = dbFile.insertTuples(tid, tuples);
+            for (Page page : pages) {
+                markDirty(tid, page);
+            }
+        } finally {
+            updating.unlock();
+        }
     }
 
     /**
@@ -221,11 +897,23 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> pages = dbFile.deleteTuple(tid, t);
-        pages.forEach(e -> {
-            e.markDirty(true, tid);
-            pageCache.put(e.getId(), e);
-        });
+        Lock updating = updateLatch(tid).readLock();
+        updating.lock();
+        try {
+            List<Page> pages = dbFile.deleteTuple(tid, t);
+            for (Page page : pages) {
+                markDirty(tid, page);
+            }
+        } finally {
+            updating.unlock();
+        }
+    }
+
+    /** Marks a page tid updated as dirty and caches it in place of its old version. */
+    private void markDirty(TransactionId tid, Page page) throws DbException {
+        page.markDirty(true, tid);
+        dirtiedAt.putIfAbsent(page.getId(), System.currentTimeMillis());
+        cachePage(tid, page, true);
     }
 
     /**
@@ -233,18 +921,14 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
-        pageCache.forEach((pageId, page) -> {
-            try {
-                if (page.isDirty() != null) {
-                    flushPage(pageId);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        for (Shard shard : shards) {
+            for (Page page : shard.dirtyPages(null)) {
+                flushPage(page);
             }
-        });
-
+        }
+        cleanPages(null);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -255,67 +939,342 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
-        pageCache.remove(pid);
+        // an in-flight read-ahead must not cache the page after it is gone
+        Future<Page> future = prefetched.remove(pid);
+        if (future != null) {
+            future.cancel(false);
+        }
+        shardFor(pid).remove(pid);
+        unflushed.remove(pid);
+        recLsns.remove(pid);
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Flushes a certain page to disk. Runs without any shard latch; the
+     * page's monitor keeps concurrent flushes of the same page from
+     * logging and writing it twice.
+     * @param page the cached page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(Page page) throws IOException {
         // some code goes here
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = pageCache.get(pid);
-        // append an update record to the log, with
-        // a before-image and after-image.
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        synchronized (page) {
+            // append an update record to the log, with
+            // a before-image and after-image.
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null){
+                // enter the page before logging, so that a checkpoint never
+                // misses a logged change that is not on disk
+                recLsns.putIfAbsent(page.getId(), Database.getLogFile().getEndLsn());
+                page.setLSN(Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page));
+                written.computeIfAbsent(dirtier, t -> ConcurrentHashMap.newKeySet()).add(page.getId());
+            }
+            // WAL: the log must be durable up to the page's last record
+            Database.getLogFile().force(page.getLSN());
+            dbFile.writePage(page);
+            if (!isWritten(page.getId())) {
+                recLsns.remove(page.getId());
+            }
+            page.markDirty(false, null);
+            dirtiedAt.remove(page.getId());
         }
-        dbFile.writePage(page);
-        page.markDirty(false, null);
+    }
+
+    /** Returns whether an active transaction has written changes to pid. */
+    private boolean isWritten(PageId pid) {
+        for (Set<PageId> pids : written.values()) {
+            if (pids.contains(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            Page page = entry.getValue();
-            if (page.isDirty() != null && page.isDirty().equals(tid)) {
-                // use current page contents as the before-image
-                // for the next transaction that modifies this page.
-                page.setBeforeImage();
-                flushPage(page.getId());
+        for (Shard shard : shards) {
+            for (Page page : shard.dirtyPages(tid)) {
+                synchronized (page) {
+                    // log the change against the last committed image, then
+                    // use current page contents as the before-image
+                    // for the next transaction that modifies this page.
+                    flushPage(page);
+                    page.setBeforeImage();
+                }
             }
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * NO-FORCE commit: append an update record for each page dirtied by tid
+     * and force the log once. The pages stay cached, now clean, and are
+     * remembered as unflushed until the page cleaner writes them.
      */
-    private synchronized void evictPage() throws DbException {
-        // some code goes here
-        for (int i = 0; i < pageCache.size(); i++) {
-            PageId pid = evictPolicy.pop();
-            if (pageCache.get(pid).isDirty() == null) {
-                try {
-                    flushPage(pid);
-                } catch (IOException e) {
-                    e.printStackTrace();
+    private void logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        long seq = commitSeq.incrementAndGet();
+        List<Page> logged = new ArrayList<>();
+        for (Shard shard : shards) {
+            for (Page page : shard.dirtyPages(tid)) {
+                synchronized (page) {
+                    recLsns.putIfAbsent(page.getId(), log.getEndLsn());
+                    page.setLSN(log.logWrite(tid, page.getBeforeImage(), page));
+                    page.setBeforeImage();
+                    page.markDirty(false, null);
+                    dirtiedAt.remove(page.getId());
                 }
-                pageCache.remove(pid);
-                return;
+                logged.add(page);
+            }
+        }
+        if (logged.isEmpty()) {
+            return;
+        }
+        log.force();
+        // only after the log is durable may the cleaner write the pages
+        for (Page page : logged) {
+            unflushed.put(page.getId(), seq);
+        }
+        PageCleaner c = cleaner;
+        if (c != null) {
+            c.wakeUp();
+        }
+    }
+
+    /**
+     * Writes unflushed committed pages to disk. Pages that an active
+     * transaction has dirtied again are skipped; its commit makes them
+     * unflushed again.
+     *
+     * @param only the shard whose pages to write, or null for all shards
+     * @return the number of pages written
+     */
+    int cleanPages(Shard only) throws IOException {
+        int written = 0;
+        for (Map.Entry<PageId, Long> entry : unflushed.entrySet()) {
+            PageId pid = entry.getKey();
+            Shard shard = shardFor(pid);
+            if (only != null && shard != only) {
+                continue;
+            }
+            Page page = shard.peek(pid);
+            if (page != null) {
+                synchronized (page) {
+                    if (page.isDirty() != null) {
+                        continue;
+                    }
+                    // WAL; logPages already forced the log past the page LSN
+                    Database.getLogFile().force(page.getLSN());
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                    recLsns.remove(pid);
+                }
+                written++;
+            }
+            // keep the entry if the page was committed again meanwhile
+            unflushed.remove(pid, entry.getValue());
+        }
+        return written;
+    }
+
+    /**
+     * One shard of the buffer pool: a page table with its own eviction policy,
+     * guarded by the shard's monitor. Lookups of cached pages read the
+     * concurrent page table without taking the latch.
+     */
+    private static final class Shard {
+
+        private int capacity;
+
+        private final Map<PageId, Page> pages = new ConcurrentHashMap<>();
+
+        private final EvictPolicy evictPolicy;
+
+        private final FrameArena arena;
+
+        /** arena frame of each framed page in the shard */
+        private final Map<PageId, Integer> frameOf = new HashMap<>();
+
+        /** the pool's unflushed committed pages, which must not be evicted */
+        private final Map<PageId, Long> unflushed;
+
+        Shard(int capacity, EvictPolicy evictPolicy, FrameArena arena, Map<PageId, Long> unflushed) {
+            this.capacity = capacity;
+            this.evictPolicy = evictPolicy;
+            this.arena = arena;
+            this.unflushed = unflushed;
+        }
+
+        /**
+         * Returns the cached page, recording the hit with the eviction
+         * policy, or null if the page is not cached. Does not take the latch.
+         */
+        Page get(PageId pid) {
+            Page page = pages.get(pid);
+            if (page != null) {
+                evictPolicy.touch(pid);
+            }
+            return page;
+        }
+
+        boolean contains(PageId pid) {
+            return pages.containsKey(pid);
+        }
+
+        /**
+         * Returns the page the eviction policy would evict next, without
+         * evicting it, or null if the shard is empty.
+         */
+        synchronized Page victim() {
+            PageId pid = evictPolicy.peek();
+            return pid == null ? null : pages.get(pid);
+        }
+
+        /**
+         * Returns the cached page without recording a hit, or null.
+         */
+        Page peek(PageId pid) {
+            return pages.get(pid);
+        }
+
+        /**
+         * Caches a page, evicting a clean page if the shard is full.
+         *
+         * @param replace whether page replaces a cached version of itself
+         * @return the cached page, or null if the shard is full of dirty
+         *         pages and page does not replace a cached version
+         */
+        synchronized Page put(Page page, boolean replace) {
+            PageId pid = page.getId();
+            Page cached = pages.get(pid);
+            if (cached != null) {
+                if (!replace || cached == page) {
+                    return cached;
+                }
+                unbind(cached);
             } else {
+                // a replacing page was already modified and must be kept,
+                // even if that overfills the shard
+                if (pages.size() >= capacity && !evictPage() && !replace) {
+                    return null;
+                }
                 evictPolicy.put(pid);
             }
+            bind(page);
+            pages.put(pid, page);
+            return page;
+        }
+
+        /**
+         * Moves the image of a page entering the shard into an arena frame,
+         * if there is an arena and a free frame.
+         */
+        private void bind(Page page) {
+            if (arena == null || !(page instanceof FramedPage)) {
+                return;
+            }
+            int frameNo = arena.allocate();
+            if (frameNo < 0) {
+                // the shard is overfilled; keep this page on the heap
+                return;
+            }
+            if (((FramedPage) page).bindFrame(arena.frame(frameNo))) {
+                frameOf.put(page.getId(), frameNo);
+            } else {
+                arena.release(frameNo);
+            }
+        }
+
+        /**
+         * Copies the image of a page leaving the shard out of its frame, so
+         * that the page object stays valid, and frees the frame.
+         */
+        private void unbind(Page page) {
+            Integer frameNo = frameOf.remove(page.getId());
+            if (frameNo != null) {
+                ((FramedPage) page).unbindFrame();
+                arena.release(frameNo);
+            }
+        }
+
+        /**
+         * Gives up one slot of this shard, evicting a clean page if needed.
+         *
+         * @return false if the shard has no free slot and no clean page
+         */
+        synchronized boolean releaseSlot() {
+            if (capacity == 0 || (pages.size() >= capacity && !evictPage())) {
+                return false;
+            }
+            capacity--;
+            evictPolicy.resize(Math.max(1, capacity));
+            return true;
+        }
+
+        synchronized void addSlot() {
+            capacity++;
+            evictPolicy.resize(capacity);
+        }
+
+        synchronized void remove(PageId pid) {
+            Page page = pages.remove(pid);
+            if (page != null) {
+                evictPolicy.remove(pid);
+                unbind(page);
+            }
+        }
+
+        /**
+         * Returns the pages dirtied by tid, or all dirty pages if tid is null.
+         */
+        synchronized List<Page> dirtyPages(TransactionId tid) {
+            List<Page> dirty = new ArrayList<>();
+            for (Page page : pages.values()) {
+                TransactionId dirtier = page.isDirty();
+                if (dirtier != null && (tid == null || dirtier.equals(tid))) {
+                    dirty.add(page);
+                }
+            }
+            return dirty;
+        }
+
+        /**
+         * Replaces the pages dirtied by tid with their before-images.
+         */
+        synchronized void recover(TransactionId tid) {
+            for (Page page : dirtyPages(tid)) {
+                Page before = page.getBeforeImage();
+                before.markDirty(false, null);
+                unbind(page);
+                bind(before);
+                pages.put(before.getId(), before);
+            }
+        }
+
+        /**
+         * Discards a page from the shard. Only clean pages whose committed
+         * contents are on disk are evicted, so nothing is written.
+         *
+         * @return false if every page in the shard is dirty or unflushed
+         */
+        private boolean evictPage() {
+            // some code goes here
+            for (PageId pid = evictPolicy.peek(); pid != null; pid = evictPolicy.peek()) {
+                Page page = pages.get(pid);
+                if (page.isDirty() == null && !unflushed.containsKey(pid)) {
+                    evictPolicy.evict(pid);
+                    pages.remove(pid);
+                    unbind(page);
+                    return true;
+                }
+                // passed over in place, so the policy's order is kept
+                evictPolicy.skip(pid);
+            }
+            return false;
         }
-        throw new DbException("all dirty pages");
     }
 
 }
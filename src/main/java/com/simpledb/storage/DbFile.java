@@ -7,7 +7,10 @@ import com.simpledb.transaction.TransactionAbortedException;
 import com.simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -33,6 +36,17 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Builds a page of this file from its serialized image, the way
+     * {@link #readPage} does with the bytes on disk. Used by recovery to
+     * write back pages it patched from the log.
+     *
+     * @param id The id of the page
+     * @param data The page image, as returned by {@link Page#getPageData}
+     * @throws IOException if the image cannot be decoded
+     */
+    Page decodePage(PageId id, byte[] data) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -48,6 +62,32 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction. Files
+     * that can lay out many tuples at once (e.g. by appending whole pages)
+     * should override this; the default inserts the tuples one at a time.
+     * <p>
+     * Like {@link #insertTuple}, this acquires locks on the affected pages.
+     * The returned pages are the ones the caller must mark dirty and keep in
+     * the buffer pool; pages the file wrote out itself (having logged them)
+     * are not returned.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add, which are updated to reflect where
+     *               they are stored
+     * @return The modified pages that were not written to disk
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Set<Page> modified = new LinkedHashSet<>();
+        for (Tuple t : tuples) {
+            modified.addAll(insertTuple(tid, t));
+        }
+        return new ArrayList<>(modified);
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -93,4 +133,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Releases the open file handles of this DbFile. Called by the Catalog
+     * when the file is dropped or replaced; a later access reopens them.
+     *
+     * @throws IOException if closing fails
+     */
+    void close() throws IOException;
 }
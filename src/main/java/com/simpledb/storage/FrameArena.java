@@ -0,0 +1,104 @@
+package com.simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is a fixed number of page-sized frames carved out of
+ * preallocated direct (off-heap) ByteBuffer slabs. Frames are addressed by
+ * frame number; {@link #frame} returns a view of one frame that a page can
+ * use as its image.
+ * <p>
+ * All memory is allocated up front, so an arena of n frames costs n times
+ * the page size outside the Java heap, and the garbage collector never
+ * scans or copies page bytes.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** largest slab a single direct ByteBuffer can address */
+    private static final int MAX_SLAB_BYTES = Integer.MAX_VALUE;
+
+    private final int frameSize;
+
+    private final int framesPerSlab;
+
+    private final ByteBuffer[] slabs;
+
+    /** stack of unallocated frame numbers */
+    private final int[] free;
+
+    private int numFree;
+
+    /**
+     * Allocates an arena of numFrames frames of frameSize bytes each.
+     *
+     * @param numFrames the number of frames
+     * @param frameSize the size of each frame in bytes, i.e. the page size
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        if (numFrames < 0 || frameSize <= 0) {
+            throw new IllegalArgumentException("invalid arena of " + numFrames + " frames of " + frameSize + " bytes");
+        }
+        this.frameSize = frameSize;
+        this.framesPerSlab = Math.max(1, MAX_SLAB_BYTES / frameSize);
+        int numSlabs = (numFrames + framesPerSlab - 1) / framesPerSlab;
+        this.slabs = new ByteBuffer[numSlabs];
+        for (int i = 0; i < numSlabs; i++) {
+            int frames = Math.min(framesPerSlab, numFrames - i * framesPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.free = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            free[i] = numFrames - 1 - i;
+        }
+        this.numFree = numFrames;
+    }
+
+    /**
+     * Returns the size of each frame in bytes.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Returns the total number of frames in the arena.
+     */
+    public int numFrames() {
+        return free.length;
+    }
+
+    /**
+     * Returns the number of frames that are not allocated.
+     */
+    public synchronized int numFreeFrames() {
+        return numFree;
+    }
+
+    /**
+     * Allocates a frame.
+     *
+     * @return the frame number, or -1 if every frame is allocated
+     */
+    public synchronized int allocate() {
+        return numFree == 0 ? -1 : free[--numFree];
+    }
+
+    /**
+     * Returns an allocated frame to the arena. Its contents must no longer
+     * be used through any view.
+     */
+    public synchronized void release(int frameNo) {
+        free[numFree++] = frameNo;
+    }
+
+    /**
+     * Returns a view of the specified frame, with position 0 and limit and
+     * capacity equal to the frame size.
+     */
+    public ByteBuffer frame(int frameNo) {
+        ByteBuffer slab = slabs[frameNo / framesPerSlab];
+        return slab.slice((frameNo % framesPerSlab) * frameSize, frameSize);
+    }
+}
@@ -0,0 +1,26 @@
+package com.simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Page whose image can live in a buffer pool frame, e.g. one from a
+ * {@link FrameArena}, instead of in its own heap array.
+ */
+public interface FramedPage extends Page {
+
+    /**
+     * Copies the page image into the frame and uses the frame as the image
+     * from now on.
+     *
+     * @param frame the frame, with capacity equal to the page size
+     * @return false if the frame does not fit the page, in which case the
+     *         page is unchanged
+     */
+    boolean bindFrame(ByteBuffer frame);
+
+    /**
+     * Copies the page image out of its frame into a heap array, so the
+     * frame can be reused while this page object stays valid.
+     */
+    void unbindFrame();
+}
@@ -0,0 +1,63 @@
+package com.simpledb.storage;
+
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap tracks which pages of a HeapFile are known to be full, so that
+ * inserts can go straight to a page that may have room instead of locking
+ * and inspecting every page from the start of the file.
+ * <p>
+ * The map is a hint, not a source of truth: a page is only marked full after
+ * an insert has seen it full, and is marked free again when a tuple is
+ * deleted from it. Pages that have never been inspected are treated as
+ * candidates. Callers must still check the page itself before inserting.
+ * If the insert that filled a page is rolled back, the page stays marked full
+ * until a tuple is deleted from it; that only wastes space, it never breaks
+ * an insert.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** bit i is set if page i was last seen full */
+    private final BitSet full = new BitSet();
+
+    /**
+     * Returns the first page at or after from that may have an empty slot.
+     *
+     * @param from the first page number to consider
+     * @return a page number &gt;= from, which may be past the end of the file
+     */
+    public synchronized int nextCandidate(int from) {
+        return full.nextClearBit(from);
+    }
+
+    /**
+     * Records that the specified page has no empty slots.
+     */
+    public synchronized void markFull(int pageNo) {
+        full.set(pageNo);
+    }
+
+    /**
+     * Records that pages fromPage (inclusive) to toPage (exclusive) have no
+     * empty slots.
+     */
+    public synchronized void markFull(int fromPage, int toPage) {
+        full.set(fromPage, toPage);
+    }
+
+    /**
+     * Records that the specified page has at least one empty slot.
+     */
+    public synchronized void markFree(int pageNo) {
+        full.clear(pageNo);
+    }
+
+    /**
+     * Returns true if the specified page was last seen full.
+     */
+    public synchronized boolean isFull(int pageNo) {
+        return full.get(pageNo);
+    }
+}
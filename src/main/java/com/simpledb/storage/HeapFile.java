@@ -8,7 +8,7 @@ import com.simpledb.transaction.TransactionId;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -30,6 +30,20 @@ public class HeapFile implements DbFile {
 
     private TupleDesc td;
 
+    private final PageFileChannel channel;
+
+    /** pages known to be full, used to pick a page for insertTuple */
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+
+    /** latch for handing out the page numbers of appended pages */
+    private final Object allocLatch = new Object();
+
+    /** first page number not yet handed out; protected by allocLatch */
+    private int nextPageNo;
+
+    /** number of pages a sequential scan reads ahead of itself, 0 disables read-ahead */
+    private volatile int readAheadPages;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -41,6 +55,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.channel = new PageFileChannel(f);
     }
 
     /**
@@ -53,6 +68,36 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Returns the channel through which this HeapFile reads and writes its pages.
+     */
+    public PageFileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Serve page reads from a memory-mapped view of the file. Useful for
+     * read-mostly tables.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        channel.setMemoryMapped(memoryMapped);
+    }
+
+    /**
+     * Sets how many pages an iterator over this file asks the BufferPool to
+     * prefetch once it detects that it is reading pages sequentially.
+     *
+     * @param pages the read-ahead window, or 0 to disable read-ahead
+     */
+    public void setReadAheadPages(int pages) {
+        if (pages < 0) throw new IllegalArgumentException("negative read-ahead window");
+        this.readAheadPages = pages;
+    }
+
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -77,34 +122,35 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
-            int offset = BufferPool.getPageSize() * pid.getPageNumber();
-            raf.seek(offset);
+            long offset = (long) BufferPool.getPageSize() * pid.getPageNumber();
             byte[] data = new byte[BufferPool.getPageSize()];
-            raf.read(data);
-            raf.close();
-            return new HeapPage((HeapPageId) pid, data);
+            channel.read(offset, data);
+            return decodePage(pid, data);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public Page decodePage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
-        try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            int offset = BufferPool.getPageSize() * page.getId().getPageNumber();
-            raf.seek(offset);
-            raf.write(page.getPageData());
-            raf.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        long offset = (long) BufferPool.getPageSize() * page.getId().getPageNumber();
+        channel.write(offset, page.getPageData());
     }
 
     /**
@@ -112,7 +158,11 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) (file.length() / BufferPool.getPageSize());
+        try {
+            return (int) (channel.size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -120,27 +170,164 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         List<Page> modified = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
+        // only visit pages that are not known to be full
+        for (int i = freeSpace.nextCandidate(0); i < numPages(); i = freeSpace.nextCandidate(i + 1)) {
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
             if (page.getNumEmptySlots() == 0) {
                 // release lock when the page is full
+                freeSpace.markFull(i);
                 Database.getBufferPool().unsafeReleasePage(tid, page.getId());
                 continue;
             }
             try {
                 page.insertTuple(t);
+                if (page.getNumEmptySlots() == 0) {
+                    freeSpace.markFull(i);
+                }
                 modified.add(page);
                 return modified;
             } catch (DbException ignored) {};
         }
-        HeapPage page = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
-        page.insertTuple(t);
-        writePage(page);
+        int pageNo = allocatePages(1);
+        HeapPage page;
+        try {
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+            page = new HeapPage(pid, HeapPage.createEmptyPageData());
+            page.insertTuple(t);
+            writePage(page);
+        } finally {
+            freeSpace.markFree(pageNo);
+        }
         modified.add(page);
         return modified;
         // not necessary for lab1
     }
 
+    /**
+     * Inserts a batch of tuples. Tuples first go into existing pages that may
+     * have room, through the buffer pool as for {@link #insertTuple}. The
+     * rest are packed into fresh pages built in memory, which are logged and
+     * then appended to the file with a few large writes instead of being
+     * created and dirtied one at a time in the buffer pool. If the
+     * transaction aborts, the logged empty before-images restore the
+     * appended pages, as does the buffer pool when it completes the
+     * transaction.
+     *
+     * @return the existing pages that were modified; the appended pages are
+     *         already on disk and are not returned
+     */
+    @Override
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> modified = new ArrayList<>();
+        int next = 0;
+        for (int i = freeSpace.nextCandidate(0); i < numPages() && next < tuples.size();
+             i = freeSpace.nextCandidate(i + 1)) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() == 0) {
+                freeSpace.markFull(i);
+                Database.getBufferPool().unsafeReleasePage(tid, page.getId());
+                continue;
+            }
+            while (next < tuples.size() && page.getNumEmptySlots() > 0) {
+                page.insertTuple(tuples.get(next++));
+            }
+            if (page.getNumEmptySlots() == 0) {
+                freeSpace.markFull(i);
+            }
+            modified.add(page);
+        }
+        if (next < tuples.size()) {
+            appendPages(tid, tuples.subList(next, tuples.size()));
+        }
+        return modified;
+    }
+
+    /** number of pages written by a single channel write in appendPages */
+    private static final int APPEND_CHUNK_PAGES = 256;
+
+    /**
+     * Reserves n page numbers past the end of the file and every earlier
+     * reservation. Only the allocation latch is held, never across a lock
+     * wait, so concurrent appends get distinct pages without hiding a wait
+     * from the deadlock detector. The reserved pages are marked full until
+     * their owner has written them, so that insertTuple does not pick one
+     * that reads as empty meanwhile.
+     *
+     * @return the number of the first reserved page
+     */
+    private int allocatePages(int n) {
+        synchronized (allocLatch) {
+            int first = Math.max(nextPageNo, numPages());
+            nextPageNo = first + n;
+            freeSpace.markFull(first, first + n);
+            return first;
+        }
+    }
+
+    /**
+     * Packs the tuples into new pages at the end of the file, at page
+     * numbers reserved by {@link #allocatePages}.
+     */
+    private void appendPages(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int slots = HeapPage.numSlots(td);
+        int numNew = (tuples.size() + slots - 1) / slots;
+        int first = allocatePages(numNew);
+        List<HeapPage> pages = new ArrayList<>();
+        try {
+            HeapPage page = null;
+            for (Tuple t : tuples) {
+                if (page == null || page.getNumEmptySlots() == 0) {
+                    HeapPageId pid = new HeapPageId(getId(), first + pages.size());
+                    Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+                    page = new HeapPage(pid, HeapPage.createEmptyPageData());
+                    pages.add(page);
+                }
+                page.insertTuple(t);
+            }
+            writeAppended(tid, first, pages);
+        } finally {
+            for (int i = 0; i < numNew; i++) {
+                if (i >= pages.size() || pages.get(i).getNumEmptySlots() > 0) {
+                    freeSpace.markFree(first + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the appended pages and writes them with a few large writes. The
+     * pages stay in the buffer pool's dirty page table from before they
+     * are logged until they are forced to the file, since they never pass
+     * through the cache.
+     */
+    private void writeAppended(TransactionId tid, int first, List<HeapPage> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        BufferPool pool = Database.getBufferPool();
+        pool.beginAppend(tid, pages);
+
+        // WAL: the empty before-images must be durable before the pages are
+        LogFile log = Database.getLogFile();
+        for (HeapPage p : pages) {
+            log.logWrite(tid, p.getBeforeImage(), p);
+        }
+        log.force();
+
+        for (int i = 0; i < pages.size(); i += APPEND_CHUNK_PAGES) {
+            int n = Math.min(APPEND_CHUNK_PAGES, pages.size() - i);
+            ByteBuffer buf = ByteBuffer.allocate(n * pageSize);
+            for (int j = i; j < i + n; j++) {
+                buf.put(pages.get(j).getPageData());
+            }
+            buf.flip();
+            channel.write((long) (first + i) * pageSize, buf);
+        }
+        channel.force();
+        pool.endAppend(pages);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -149,6 +336,7 @@ public class HeapFile implements DbFile {
         PageId pageId = t.getRecordId().getPageId();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        freeSpace.markFree(pageId.getPageNumber());
         modified.add(page);
         return modified;
     }
@@ -163,6 +351,15 @@ public class HeapFile implements DbFile {
 
         private int pageNo;
 
+        /** page number of the last page fetched, -1 if none */
+        private int lastPageNo;
+
+        /** number of consecutive pages fetched in page order */
+        private int sequentialRun;
+
+        /** pages below this number have already been prefetched */
+        private int prefetchedUpTo;
+
         public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
             this.heapFile = heapFile;
             this.tid = tid;
@@ -170,13 +367,35 @@ public class HeapFile implements DbFile {
         }
 
         private Iterator<Tuple> tupleIterator(int pageNo) throws TransactionAbortedException, DbException {
+            readAhead(pageNo);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(heapFile.getId(), pageNo), Permissions.READ_ONLY);
             return page.iterator();
         }
 
+        /**
+         * Once two pages in a row have been fetched in order, keep the next
+         * readAheadPages pages in flight in the BufferPool.
+         */
+        private void readAhead(int pageNo) {
+            sequentialRun = pageNo == lastPageNo + 1 ? sequentialRun + 1 : 1;
+            lastPageNo = pageNo;
+            int window = heapFile.readAheadPages;
+            if (window == 0 || sequentialRun < 2) {
+                return;
+            }
+            int end = Math.min(pageNo + 1 + window, numPages());
+            for (int p = Math.max(pageNo + 1, prefetchedUpTo); p < end; p++) {
+                Database.getBufferPool().prefetchPage(new HeapPageId(heapFile.getId(), p));
+            }
+            prefetchedUpTo = Math.max(prefetchedUpTo, end);
+        }
+
         @Override
         public void open() throws DbException, TransactionAbortedException {
             this.pageNo = 0;
+            this.lastPageNo = -1;
+            this.sequentialRun = 0;
+            this.prefetchedUpTo = 0;
             this.it = tupleIterator(pageNo);
         }
 
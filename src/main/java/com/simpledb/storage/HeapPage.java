@@ -6,34 +6,77 @@ import com.simpledb.common.DbException;
 import com.simpledb.transaction.TransactionId;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the raw bytes it was created from and does not parse
+ * them up front. Fields are decoded on demand straight from their offset in
+ * the page (see {@link #getField}), and a Tuple object is only materialized
+ * for a slot the first time it is asked for, e.g. by {@link #iterator}.
+ * <p>
+ * The page image is kept up to date in place: inserting a tuple encodes it
+ * straight into its slot and deleting one clears its slot, so
+ * {@link #getPageData} is a plain copy. The image array is shared with the
+ * before-image (and with the array the page was created from) until the page
+ * is next modified, at which point it is copied.
+ * <p>
+ * The buffer pool may move the image into an off-heap frame (see
+ * {@link FramedPage}). A framed page keeps no heap copy while it is clean;
+ * the before-image is copied out of the frame on the first write. Every
+ * read of the image holds the image latch shared, and writing the image
+ * or moving it into or out of a frame holds it exclusively, so a reader
+ * never sees a half-written slot and a frame is never handed to another
+ * page while this one still uses it. Materialized tuples are cached under
+ * the latch as well.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements FramedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
+    /**
+     * materialized tuples, null for slots that have not been asked for yet;
+     * read and filled under the image latch, and filled under the array's
+     * monitor when the latch is only held shared
+     */
     final Tuple[] tuples;
     final int numSlots;
 
+    /** the current page image, header followed by the tuple slots */
+    volatile ByteBuffer data;
+    /** true if the array backing data is shared and must be copied before writing */
+    private boolean dataShared;
+    /** true if data is a buffer pool frame rather than a heap array */
+    private boolean framed;
+    private final int headerSize;
+    private final int tupleSize;
+
+    /** the before-image; null if it equals the current image of a framed page */
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
 
+    /** held shared while data is read and exclusively while it is written or moves; taken before oldDataLock */
+    private final ReentrantReadWriteLock imageLatch = new ReentrantReadWriteLock();
+    private final Lock imageRead = imageLatch.readLock();
+    private final Lock imageWrite = imageLatch.writeLock();
+
     private TransactionId dirtyTid;
 
     private boolean dirty;
 
+    private volatile long lsn = LogFile.NO_LSN;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -55,24 +98,22 @@ public class HeapPage implements Page {
         this.dirtyTid = null;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        this.tupleSize = td.getSize();
+        if (data.length < BufferPool.getPageSize()) {
+            // callers may leave off the zero padding at the end of the page
+            data = Arrays.copyOf(data, BufferPool.getPageSize());
+        }
+        this.headerSize = getHeaderSize();
+        // the caller's array is never written to; it is copied on first write
+        this.data = ByteBuffer.wrap(data);
+        this.dataShared = true;
 
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
-        setBeforeImage();
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -80,10 +121,14 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {
         // some code goes here
+        return numSlots(td);
+    }
+
+    /** Returns the number of tuples of the given schema that fit on a page. */
+    static int numSlots(TupleDesc td) {
         int pageSize = BufferPool.getPageSize();
         int tupleSize = td.getSize();
         return (int) Math.floor((double) (pageSize * 8) / (tupleSize * 8 + 1));
-
     }
 
     /**
@@ -102,9 +147,14 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
+            imageRead.lock();
+            try {
+                synchronized(oldDataLock)
+                {
+                    oldDataRef = oldData != null ? oldData : copyData();
+                }
+            } finally {
+                imageRead.unlock();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -116,9 +166,96 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        // share the current image with the before-image; the next write to
+        // this page copies it
+        imageRead.lock();
+        try {
+            synchronized(oldDataLock)
+            {
+                if (framed) {
+                    oldData = null;
+                } else {
+                    oldData = data.array();
+                    dataShared = true;
+                }
+            }
+        } finally {
+            imageRead.unlock();
+        }
+    }
+
+    /**
+     * Prepares the page image for an in-place update, copying it first if
+     * the array is shared with the before-image. Must be called with the
+     * image latch held exclusively.
+     */
+    private void beforeWrite() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+            if (framed) {
+                if (oldData == null) {
+                    oldData = copyData();
+                }
+            } else if (dataShared) {
+                data = ByteBuffer.wrap(data.array().clone());
+                dataShared = false;
+            }
+        }
+    }
+
+    /** Returns a heap copy of the current page image; the image latch must be held. */
+    private byte[] copyData() {
+        ByteBuffer image = data;
+        byte[] copy = new byte[image.capacity()];
+        image.get(0, copy);
+        return copy;
+    }
+
+    public boolean bindFrame(ByteBuffer frame) {
+        imageWrite.lock();
+        try {
+            synchronized(oldDataLock)
+            {
+                if (framed || frame.capacity() != data.capacity()) {
+                    return false;
+                }
+                frame.put(0, data, 0, data.capacity());
+                if (dataShared) {
+                    // clean: the before-image is the image now in the frame
+                    oldData = null;
+                }
+                dataShared = false;
+                framed = true;
+                data = frame;
+                return true;
+            }
+        } finally {
+            imageWrite.unlock();
+        }
+    }
+
+    /**
+     * Waits for every reader and writer of the frame to finish, so that the
+     * caller may release the frame once this returns.
+     */
+    public void unbindFrame() {
+        imageWrite.lock();
+        try {
+            synchronized(oldDataLock)
+            {
+                if (!framed) {
+                    return;
+                }
+                byte[] copy = copyData();
+                data = ByteBuffer.wrap(copy);
+                framed = false;
+                if (oldData == null) {
+                    oldData = copy;
+                    dataShared = true;
+                }
+            }
+        } finally {
+            imageWrite.unlock();
         }
     }
 
@@ -131,37 +268,69 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the offset in the page image of the given field of the tuple in
+     * the given slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private int fieldOffset(int slotId, int fieldIndex) {
+        return headerSize + slotId * tupleSize + td.getFieldOffset(fieldIndex);
+    }
+
+    /**
+     * Decode a single field of the tuple in the specified slot without
+     * materializing the rest of the tuple.
+     *
+     * @param slotId the slot of the tuple
+     * @param fieldIndex the index of the field in the tuple
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int fieldIndex) throws NoSuchElementException {
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        imageRead.lock();
+        try {
+            Tuple t = tuples[slotId];
+            if (t != null) {
+                return t.getField(fieldIndex);
             }
-            return null;
+            return td.getFieldType(fieldIndex).decode(data, fieldOffset(slotId, fieldIndex));
+        } finally {
+            imageRead.unlock();
         }
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    /**
+     * Returns the tuple in the specified slot, materializing it from the page
+     * image if this is the first time it is asked for.
+     *
+     * @param slotId the slot of the tuple
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Tuple getTuple(int slotId) throws NoSuchElementException {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        return materialize(slotId);
+    }
+
+    private Tuple materialize(int slotId) {
+        imageRead.lock();
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+            synchronized (tuples) {
+                Tuple t = tuples[slotId];
+                if (t == null) {
+                    t = new Tuple(td);
+                    t.setRecordId(new RecordId(pid, slotId));
+                    for (int j=0; j<td.numFields(); j++) {
+                        t.setField(j, td.getFieldType(j).decode(data, fieldOffset(slotId, j)));
+                    }
+                    tuples[slotId] = t;
+                }
+                return t;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        } finally {
+            imageRead.unlock();
         }
-
-        return t;
     }
 
     /**
@@ -176,64 +345,15 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
+        imageRead.lock();
         try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            synchronized(oldDataLock)
+            {
+                return copyData();
+            }
+        } finally {
+            imageRead.unlock();
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -263,7 +383,20 @@ public class HeapPage implements Page {
         int tupleNumber = t.getRecordId().getTupleNumber();
         if (pageId != getId()) throw new DbException("this tuple is not on this page");
         if (!isSlotUsed(tupleNumber)) throw new DbException("tuple slot is already empty");
-        markSlotUsed(tupleNumber, false);
+        // keep the tuple around for iterators that are already past this slot
+        materialize(tupleNumber);
+        imageWrite.lock();
+        try {
+            beforeWrite();
+            markSlotUsed(tupleNumber, false);
+            // empty slots are stored as zeroes
+            int offset = headerSize + tupleNumber * tupleSize;
+            for (int i = 0; i < tupleSize; i++) {
+                data.put(offset + i, (byte) 0);
+            }
+        } finally {
+            imageWrite.unlock();
+        }
     }
 
     /**
@@ -277,13 +410,22 @@ public class HeapPage implements Page {
         // some code goes here
         if (getNumEmptySlots() == 0) throw new DbException("page is full");
         if (!t.getTupleDesc().equals(td)) throw new DbException("tupleDesc is mismatch");
-        for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                markSlotUsed(i, true);
-                t.setRecordId(new RecordId(pid, i));
-                tuples[i] = t;
-                return;
+        imageWrite.lock();
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    beforeWrite();
+                    for (int j = 0; j < td.numFields(); j++) {
+                        td.getFieldType(j).encode(t.getField(j), data, fieldOffset(i, j));
+                    }
+                    markSlotUsed(i, true);
+                    t.setRecordId(new RecordId(pid, i));
+                    tuples[i] = t;
+                    return;
+                }
             }
+        } finally {
+            imageWrite.unlock();
         }
     }
 
@@ -305,14 +447,27 @@ public class HeapPage implements Page {
         return dirty ? dirtyTid : null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
         int cnt = 0;
-        for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)) cnt++;
+        imageRead.lock();
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) cnt++;
+            }
+        } finally {
+            imageRead.unlock();
         }
         return cnt;
     }
@@ -324,21 +479,29 @@ public class HeapPage implements Page {
         // some code goes here
         int byteIndex = i / 8;
         int bitIndex = i % 8;
-        return (header[byteIndex] & (1 << bitIndex)) != 0;
+        imageRead.lock();
+        try {
+            return (data.get(byteIndex) & (1 << bitIndex)) != 0;
+        } finally {
+            imageRead.unlock();
+        }
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * Abstraction to fill or clear a slot on this page. The image latch must
+     * be held exclusively.
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         int byteIndex = i / 8;
         int bitIndex = i % 8;
+        byte b = data.get(byteIndex);
         if (value) {
-            header[byteIndex] |= (byte) (1 << bitIndex);
+            b |= (byte) (1 << bitIndex);
         } else {
-            header[byteIndex] ^= (byte) (1 << bitIndex);
+            b &= (byte) ~(1 << bitIndex);
         }
+        data.put(byteIndex, b);
     }
 
     /**
@@ -347,11 +510,42 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList = new ArrayList<>();
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) tupleList.add(tuples[i]);
+        // iterate over the slots in use now, so that tuples inserted or
+        // deleted while iterating do not change what is returned
+        final byte[] used = new byte[headerSize];
+        imageRead.lock();
+        try {
+            data.get(0, used);
+        } finally {
+            imageRead.unlock();
+        }
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(used, 0);
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (next >= numSlots) throw new NoSuchElementException();
+                Tuple t = materialize(next);
+                next = nextUsedSlot(used, next + 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns the first slot at or after from that is marked used in the given
+     * header, or numSlots if there is none.
+     */
+    private int nextUsedSlot(byte[] header, int from) {
+        while (from < numSlots && (header[from / 8] & (1 << (from % 8))) == 0) {
+            from++;
         }
-        return tupleList.iterator();
+        return from;
     }
 
 }
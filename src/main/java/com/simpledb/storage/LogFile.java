@@ -5,13 +5,21 @@ import com.simpledb.common.Database;
 import com.simpledb.common.Debug;
 import com.simpledb.transaction.TransactionId;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -23,64 +31,101 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening.)  The BufferPool has no pool-wide lock: it
+latches each shard and each cached page separately.  It writes log
+records while holding a page's monitor (when it flushes the page), and
+the log calls back into it under this monitor (rollback discards pages,
+checkpoints read the dirty page table), which only takes shard latches.
+To avoid deadlock, the locks are always taken in the order
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    page monitor, then LogFile monitor, then shard latch
+</pre>
 
-       ..
+so no LogFile method may flush or otherwise latch a cached page while
+holding this monitor.
 
-       }
-    }
-</pre>
+<u> Group commit: </u>
+<p>
+
+Appended records are buffered in memory and written to the file in
+batches. A committing transaction waits, outside the LogFile monitor,
+until the log is durable up to its commit record's log sequence number
+(LSN). The first waiter becomes the flusher for everyone waiting: it
+writes all buffered records with one write and forces them with one
+fsync. See {@link LogFile#setGroupCommit}.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in preallocated segment files of a fixed size
+(see LogSegments.)  Offsets are positions in the whole log, across
+segments, and records may span segment boundaries.
+
+<li> The header of the first segment holds the offset of the last
+written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
+<li> All data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, an integer length of
+the whole record in bytes, and a long integer transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began, and an integer CRC32C
+of all the record's other bytes.  After a crash, the log ends at the
+first record whose length, start offset or checksum does not match, so
+a record torn by the crash is never read (see LogFile.recover().)
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
+<li> UPDATE and DELTA records start with the prevLSN of their
+transaction: the offset of its previous UPDATE, DELTA or BEGIN record,
+or -1 if there is none.  Rolling back a transaction follows this chain
+backward instead of scanning the log.
+
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
+after image.  These images are serialized Page objects, stored with the
+numeric page and page id type codes of PageCodec, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA RECORDS describe the same change as an UPDATE record, as the
+page id and the byte ranges in which the after image differs from the
+before image, with the old and new bytes of each range (see PageDelta.)
+They are logged instead of UPDATE records whenever they are smaller than
+one page image, which is the case for single tuple inserts and deletes.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  It is followed by the dirty page table: an
+integer count of pages, and for each page its id (as in a DELTA record)
+and the long integer offset of the first record that may be needed to
+redo it.
 
 </ul>
+
+<p> The log sequence number (LSN) of a record is its offset in the log.
+Truncation drops whole segments without moving records, so LSNs only
+grow for the lifetime of a LogFile.  Each page remembers the LSN of the last
+record holding its contents (see {@link Page#getLSN}), and the log
+tracks the LSN up to which it is durable (see {@link #getFlushedLsn}).
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
+    /** cursor for reading the log; protected by this */
+    private final LogSegments.Reader reader;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -88,16 +133,50 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    /** LSN of a page that has not been logged since it was read */
+    public static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** type, length, tid, start offset and checksum */
+    static final int MIN_RECORD_SIZE = 3 * INT_SIZE + 2 * LONG_SIZE;
+
+    /** default size of a log segment file, header included */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    /** default for how long a flusher waits for more commits to join it */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 0;
+    /** default for how many waiting commits make a flusher stop waiting */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 32;
 
     long currentOffset = -1;//protected by this
+
+    /** records appended but not yet written to the file; protected by this */
+    private final RecordBuffer pendingBytes = new RecordBuffer();
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+    /** offset at which the pending records will be written; protected by this */
+    private long fileEnd = -1;
+
+    /** guards flushedLsn, flushing and waiters */
+    private final Object flushLock = new Object();
+    private long flushedLsn = 0;
+    private boolean flushing = false;
+    private int waiters = 0;
+    /** held while forcing the log, so that no segment is recycled meanwhile */
+    private final Object forceLock = new Object();
+    /** number of times the log was forced; protected by forceLock */
+    private long forces = 0;
+
+    private volatile long groupCommitDelayNanos = DEFAULT_GROUP_COMMIT_DELAY_MICROS * 1000;
+    private volatile int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    /** offset of each live transaction's last BEGIN, UPDATE or DELTA record */
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -112,7 +191,8 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, DEFAULT_SEGMENT_SIZE);
+        reader = new LogSegments.Reader(segments);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -133,11 +213,198 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            currentOffset = segments.length();
+            fileEnd = currentOffset;
+        }
+    }
+
+    /**
+     * Sets the group commit knobs. A flusher waits up to maxDelayMicros for
+     * other commits to join its batch, and stops waiting as soon as
+     * maxBatch commits are waiting. With a delay of 0 only the commits that
+     * arrived during the previous fsync are batched.
+     *
+     * @param maxDelayMicros how long a flusher may delay its fsync
+     * @param maxBatch how many waiting commits end the delay early
+     */
+    public void setGroupCommit(long maxDelayMicros, int maxBatch) {
+        if (maxDelayMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("bad group commit settings");
+        }
+        groupCommitDelayNanos = maxDelayMicros * 1000;
+        groupCommitBatch = maxBatch;
+    }
+
+    /**
+     * Sets the size of the log segment files created from now on. Each
+     * segment is preallocated in full, and truncation frees whole segments.
+     *
+     * @param bytes the segment size, header included
+     */
+    public void setSegmentSize(int bytes) {
+        segments.setSegmentSize(bytes);
+    }
+
+    /** Returns the number of segment files the log currently spans. */
+    public int getNumSegments() {
+        return segments.numSegments();
+    }
+
+    /** Returns the LSN just past the last appended record. */
+    public synchronized long getEndLsn() {
+        return currentOffset;
+    }
+
+    /** Returns the LSN up to which the log is known to be on disk. */
+    public long getFlushedLsn() {
+        synchronized (flushLock) {
+            return flushedLsn;
+        }
+    }
+
+    /**
+     * Writes the pending records to the end of the file, without forcing
+     * them. Must be called before reading records from the file.
+     */
+    private void drain() throws IOException {
+        if (pendingBytes.size() == 0) {
+            return;
+        }
+        segments.write(fileEnd, pendingBytes.toByteArray());
+        fileEnd += pendingBytes.size();
+        pendingBytes.reset();
+    }
+
+    /**
+     * Starts appending a record: its type, a length that {@link #endRecord}
+     * fills in, and its transaction id.
+     */
+    private void beginRecord(int type, long tid) throws IOException {
+        pending.writeInt(type);
+        pending.writeInt(0);
+        pending.writeLong(tid);
+    }
+
+    /**
+     * Finishes the record begun at currentOffset: fills in its length and
+     * appends its start offset and the CRC32C of all its other bytes.
+     */
+    private void endRecord() throws IOException {
+        int start = (int) (currentOffset - fileEnd);
+        pending.writeLong(currentOffset);
+        pendingBytes.setInt(start + INT_SIZE, pendingBytes.size() - start + INT_SIZE);
+        pending.writeInt(pendingBytes.checksum(start));
+        currentOffset = fileEnd + pendingBytes.size();
+    }
+
+    /** Reads the type of a record and skips its length. */
+    private static int readType(DataInput in) throws IOException {
+        int type = in.readInt();
+        in.readInt();
+        return type;
+    }
+
+    /** The pending records, with access to their bytes for checksums */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        void setInt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+
+        int checksum(int from) {
+            CRC32C crc = new CRC32C();
+            crc.update(buf, from, count - from);
+            return (int) crc.getValue();
+        }
+    }
+
+    /** Records that the log is durable up to lsn and wakes its waiters. */
+    private void flushed(long lsn) {
+        synchronized (flushLock) {
+            if (lsn > flushedLsn) {
+                flushedLsn = lsn;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the log is on disk up to lsn. If no flush is running,
+     * the caller becomes the flusher: it waits for up to the group commit
+     * delay for other waiters, then writes and forces everything appended
+     * so far on their behalf. Must not be called with this monitor held,
+     * since the flusher needs it to write the pending records.
+     *
+     * @param lsn the LSN that must be durable
+     */
+    public void awaitFlushed(long lsn) throws IOException {
+        while (true) {
+            synchronized (flushLock) {
+                if (flushedLsn >= lsn) {
+                    return;
+                }
+                if (flushing) {
+                    waiters++;
+                    if (waiters + 1 >= groupCommitBatch) {
+                        // the batch is full, wake the flusher
+                        flushLock.notifyAll();
+                    }
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for group commit");
+                    } finally {
+                        waiters--;
+                    }
+                    continue;
+                }
+                flushing = true;
+                long deadline = System.nanoTime() + groupCommitDelayNanos;
+                long left;
+                while (waiters + 1 < groupCommitBatch && (left = deadline - System.nanoTime()) > 0) {
+                    try {
+                        flushLock.wait(left / 1000000, (int) (left % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            long target = -1;
+            try {
+                synchronized (this) {
+                    drain();
+                    target = getEndLsn();
+                }
+                synchronized (forceLock) {
+                    segments.force();
+                    forces++;
+                }
+            } finally {
+                synchronized (flushLock) {
+                    flushing = false;
+                    if (target > flushedLsn) {
+                        flushedLsn = target;
+                    }
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Returns the segments the log is stored in. */
+    LogSegments getSegments() {
+        return segments;
+    }
+
+    /** Returns the number of times the log has been forced to disk. */
+    long getForceCount() {
+        synchronized (forceLock) {
+            return forces;
         }
     }
 
@@ -150,46 +417,43 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            beginRecord(ABORT_RECORD, tid.getId());
+            endRecord();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk. The force is shared with other
+        transactions committing at the same time (group commit.)
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            lsn = getEndLsn();
+        }
+        awaitFlushed(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,99 +461,84 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the new record
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           prevLSN
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = getEndLsn();
+        Long prevLsn = tidToLastLogRecord.put(tid.getId(), currentOffset);
+        PageDelta delta = PageDelta.diff(before, after);
+        if (delta != null) {
+            beginRecord(DELTA_RECORD, tid.getId());
+            pending.writeLong(prevLsn != null ? prevLsn : NO_LSN);
+            delta.write(pending);
+        } else {
+            beginRecord(UPDATE_RECORD, tid.getId());
+            pending.writeLong(prevLsn != null ? prevLsn : NO_LSN);
+
+            writePageData(pending,before);
+            writePageData(pending,after);
+        }
+        endRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
+    void writePageData(DataOutput out, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        // page type code
+        // page id (see PageCodec)
+        // page data length
+        // page data
+        PageCodec.writePage(out, p);
+        Debug.log("WROTE PAGE DATA, CLASS = " + p.getClass().getName() + ", table = " + p.getId().getTableId() + ", page = " + p.getId().getPageNumber());
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    Page readPageData(DataInput reader) throws IOException {
+        return PageCodec.readPage(reader);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Read the body of an UPDATE or DELTA record as a delta */
+    PageDelta readUpdate(DataInput reader, int type) throws IOException {
+        reader.readLong(); // prevLSN
+        return readUpdateBody(reader, type);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /** Read the body of an UPDATE or DELTA record, after its prevLSN */
+    private PageDelta readUpdateBody(DataInput reader, int type) throws IOException {
+        if (type == DELTA_RECORD) {
+            return PageDelta.read(reader);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-               Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.getPageNumber());
+        Page before = readPageData(reader);
+        Page after = readPageData(reader);
+        return PageDelta.ofImages(before, after);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * Read the id of the page an UPDATE or DELTA record changes, leaving
+     * the reader just past it
+     */
+    private static PageId readUpdatePageId(DataInput reader, int type) throws IOException {
+        reader.readLong(); // prevLSN
+        if (type == UPDATE_RECORD) {
+            reader.readUnsignedByte(); // page type of the before-image
         }
-        return newPage;
-
+        return PageCodec.readPageId(reader);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -304,150 +553,128 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        beginRecord(BEGIN_RECORD, tid.getId());
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Checkpoint the log and write a checkpoint record. The checkpoint is
+     * fuzzy: it does not write any pages, and transactions keep running
+     * while it is taken. Instead it records the transactions that are
+     * active and the buffer pool's dirty page table, from which recovery
+     * knows where redo of each page must start. Pages are written back by
+     * the buffer pool (at commit, or by its page cleaner in NO-FORCE mode),
+     * which moves the next checkpoint's redo point forward.
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + reader.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // taken under this monitor: any change logged before the
+            // checkpoint record has its page in the table by now
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = currentOffset;
+            beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            pending.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                pending.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                pending.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, with LSNs turned into offsets
+            pending.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> entry : dirtyPages.entrySet()) {
+                PageCodec.writePageId(pending, entry.getKey());
+                pending.writeLong(entry.getValue());
             }
+            endRecord();
+            drain();
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            segments.setCheckpoint(startCpOffset);
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** Skip the body of a CHECKPOINT record */
+    private static void skipCheckpoint(DataInput in) throws IOException {
+        int numTransactions = in.readInt();
+        while (numTransactions-- > 0) {
+            in.readLong();
+            in.readLong();
+        }
+        int numDirtyPages = in.readInt();
+        while (numDirtyPages-- > 0) {
+            PageCodec.readPageId(in);
+            in.readLong();
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption. The segments before the one holding the oldest record
+        still needed are recycled; no record is copied or moved. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        drain();
+        long cpLoc = segments.getCheckpoint();
 
+        if (cpLoc == -1L) {
+            return;
+        }
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        reader.seek(cpLoc);
+        int cpType = readType(reader);
+        @SuppressWarnings("unused")
+        long cpTid = reader.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            int numOutstanding = raf.readInt();
+        int numOutstanding = reader.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = reader.readLong();
+            long firstLogRecord = reader.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        // keep what is needed to redo the dirty pages, too
+        int numDirtyPages = reader.readInt();
+        for (int i = 0; i < numDirtyPages; i++) {
+            PageCodec.readPageId(reader);
+            long recLogRecord = reader.readLong();
+            if (recLogRecord < minLogRecord) {
+                minLogRecord = recLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can drop every segment before the one holding minLogRecord;
+        // offsets do not change, so no record is rewritten
+        Debug.log("TRUNCATING LOG;  WAS " + (reader.length() - segments.firstOffset()) + " BYTES ; NEW START : " + minLogRecord);
+        synchronized (forceLock) {
+            segments.truncateBefore(minLogRecord);
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,42 +687,28 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
-                Long tidOffset = tidToFirstLogRecord.get(tid.getId());
-                if (tidOffset == null) return;
-                raf.seek(tidOffset);
-                while (raf.getFilePointer() != raf.length()) {
-                    int cpType = raf.readInt();
-                    long cpTid = raf.readLong();
-                    if (cpTid != tid.getId()) continue;
-
-                    if (cpType == UPDATE_RECORD) {
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-                        PageId pageId = before.getId();
-                        if (tid.getId() == cpTid) {
-                            int tableId = pageId.getTableId();
-                            Database.getBufferPool().discardPage(pageId);
-                            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-                            dbFile.writePage(before);
-                        }
-                    } else {
-                        // skip other record
-                        if (cpType == CHECKPOINT_RECORD) {
-                            int numTransactions = raf.readInt();
-                            while (numTransactions-- > 0) {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                        }
-                    }
-                    raf.readLong();
+        synchronized(this) {
+            preAppend();
+            drain();
+            // some code goes here
+            // walk the transaction's records backward along their
+            // prevLSN chain, which ends at its BEGIN record
+            Long offset = tidToLastLogRecord.get(tid.getId());
+            while (offset != null && offset != NO_LSN) {
+                reader.seek(offset);
+                int cpType = readType(reader);
+                reader.readLong();
+                if (cpType != UPDATE_RECORD && cpType != DELTA_RECORD) {
+                    break;
                 }
-                raf.seek(raf.length());
+                offset = reader.readLong();
+                PageDelta update = readUpdateBody(reader, cpType);
+                update.apply(false);
+                // discard after writing, so that nothing read ahead
+                // from the old contents survives
+                Database.getBufferPool().discardPage(update.pid);
             }
+            reader.seek(reader.length());
         }
     }
 
@@ -503,10 +716,15 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            // with every page written, restart has nothing to redo; flushed
+            // outside this monitor, since flushing latches the pages
+            Database.getBufferPool().flushAllPages();
+            synchronized (this) {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -516,159 +734,315 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Pages may hold changes of transactions that never finished (the
+        buffer pool may STEAL) and may lack changes of committed ones (it
+        may not FORCE them at commit). Recovery first finds the end of
+        the log by checking the checksums of the records after the last
+        checkpoint, so a record torn by the crash and anything after it
+        are ignored. It then runs three passes:
+        <ul>
+        <li> Analysis scans the log forward from the oldest record still
+        needed and builds the transaction table (the status and update
+        records of each transaction) and the dirty page table (for each
+        page, the LSN of the first record that may be missing on disk.)
+        Both start from the tables in the last checkpoint record.
+        Only record positions are kept, not page images.
+        <li> Redo replays committed changes, partitioned by page id across
+        {@link #RECOVERY_THREADS} workers that each read the log on their
+        own; records of one page are replayed in log order by one worker.
+        Every update record is taken against the page's last committed
+        contents, so a later record of the same transaction and page may
+        not cover bytes an earlier one changed, e.g. a stolen insert that
+        was deleted again. Each committed record is replayed from the
+        page's recLSN on, the earlier ones of a transaction by restoring
+        their old bytes and its last one by installing its new bytes.
+        <li> Undo rolls back transactions that neither committed nor
+        aborted, newest change first, and logs an ABORT record for each. Aborted transactions were already
+        rolled back before their ABORT record was written.
+        </ul>
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
-                raf.seek(0);
-                long checkPoint = raf.readLong();
-                if (checkPoint != -1) {
-                    // have checkpoint, then seek to pos
-                    raf.seek(checkPoint);
+        synchronized (this) {
+            recoveryUndecided = false;
+            // some code goes here
+            drain();
+            long checkPoint = segments.getCheckpoint();
+            long start = segments.firstOffset();
+            segments.setLength(findEnd(checkPoint != NO_CHECKPOINT_ID ? checkPoint : start));
+
+            // analysis
+            Map<Long, RecoveryTransaction> transactions = new HashMap<>();
+            Map<PageId, Long> dirtyPages = new HashMap<>();
+            if (checkPoint != NO_CHECKPOINT_ID) {
+                // start from the checkpoint, from the first record of a
+                // transaction that was active at the checkpoint, or from
+                // where redo of a page that was dirty at the checkpoint
+                // starts, whichever comes first
+                reader.seek(checkPoint);
+                readType(reader);
+                reader.readLong();
+                int numTransactions = reader.readInt();
+                start = checkPoint;
+                while (numTransactions-- > 0) {
+                    long tid = reader.readLong();
+                    long firstRecord = reader.readLong();
+                    transactions.put(tid, new RecoveryTransaction());
+                    start = Math.min(start, firstRecord);
                 }
-                Set<Long> committedTids = new HashSet<>();
-                Map<Long, List<Page>> beforePages = new HashMap<>();
-                Map<Long, List<Page>> afterPages = new HashMap<>();
-                Map<Long, Long> activeTransactions = new HashMap<>();
-                while (raf.getFilePointer() != raf.length()) {
-                    int cpType = raf.readInt();
-                    long cpTid = raf.readLong();
-                    switch (cpType) {
-                        case UPDATE_RECORD -> {
-                            Page before = readPageData(raf);
-                            Page after = readPageData(raf);
-                            List<Page> beforePageList = beforePages.getOrDefault(cpTid, new ArrayList<>());
-                            beforePageList.add(before);
-                            List<Page> afterPageList = afterPages.getOrDefault(cpTid, new ArrayList<>());
-                            afterPageList.add(after);
-                            beforePages.put(cpTid, beforePageList);
-                            afterPages.put(cpTid, afterPageList);
-                        }
-                        case CHECKPOINT_RECORD -> {
-                            int numTransactions = raf.readInt();
-
-                            while (numTransactions-- > 0) {
-                                long tid = raf.readLong();
-                                long firstRecord = raf.readLong();
-                                activeTransactions.put(tid, firstRecord);
-                            }
+                int numDirtyPages = reader.readInt();
+                while (numDirtyPages-- > 0) {
+                    PageId pid = PageCodec.readPageId(reader);
+                    long recOffset = reader.readLong();
+                    dirtyPages.put(pid, recOffset);
+                    start = Math.min(start, recOffset);
+                }
+            }
+            // pages first changed after this point are missing from the
+            // checkpoint's dirty page table
+            long redoStart = checkPoint != NO_CHECKPOINT_ID ? checkPoint : start;
+            // offsets of each transaction's records of each page
+            Map<PageUpdates, List<Long>> pageUpdates = new HashMap<>();
+            reader.seek(start);
+            while (reader.getFilePointer() != reader.length()) {
+                long offset = reader.getFilePointer();
+                int cpType = reader.readInt();
+                int length = reader.readInt();
+                long cpTid = reader.readLong();
+                switch (cpType) {
+                    case UPDATE_RECORD, DELTA_RECORD -> {
+                        // only the page id; the images are read by redo and undo
+                        PageId pid = readUpdatePageId(reader, cpType);
+                        reader.seek(offset + length - LONG_SIZE - INT_SIZE);
+                        transactions.computeIfAbsent(cpTid, t -> new RecoveryTransaction()).updates.add(offset);
+                        if (offset >= redoStart) {
+                            dirtyPages.putIfAbsent(pid, offset);
                         }
-                        case COMMIT_RECORD -> {
-                            committedTids.add(cpTid);
+                        Long recLsn = dirtyPages.get(pid);
+                        if (recLsn != null && offset >= recLsn) {
+                            pageUpdates.computeIfAbsent(new PageUpdates(cpTid, pid), k -> new ArrayList<>()).add(offset);
                         }
                     }
-                    raf.readLong();
+                    case CHECKPOINT_RECORD -> skipCheckpoint(reader);
+                    case BEGIN_RECORD -> transactions.computeIfAbsent(cpTid, t -> new RecoveryTransaction());
+                    case COMMIT_RECORD -> transactions.computeIfAbsent(cpTid, t -> new RecoveryTransaction()).status = COMMIT_RECORD;
+                    case ABORT_RECORD -> transactions.computeIfAbsent(cpTid, t -> new RecoveryTransaction()).status = ABORT_RECORD;
                 }
+                reader.readLong();
+                reader.readInt();
+            }
+            currentOffset = reader.getFilePointer();
+            fileEnd = currentOffset;
 
-                // handle uncommitted transactions, set before image to them
-                for (Long tid : beforePages.keySet()) {
-                    if (!committedTids.contains(tid)) {
-                        List<Page> pages = beforePages.get(tid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
+            // redo
+            List<SortedMap<Long, Boolean>> partitions = new ArrayList<>();
+            for (int i = 0; i < RECOVERY_THREADS; i++) {
+                partitions.add(new TreeMap<>());
+            }
+            int redone = 0;
+            for (Map.Entry<PageUpdates, List<Long>> entry : pageUpdates.entrySet()) {
+                if (transactions.get(entry.getKey().tid()).status == COMMIT_RECORD) {
+                    PageId pid = entry.getKey().pid();
+                    SortedMap<Long, Boolean> steps = partitions.get(Math.floorMod(pid.hashCode(), RECOVERY_THREADS));
+                    List<Long> offsets = entry.getValue();
+                    for (int i = 0; i < offsets.size(); i++) {
+                        steps.put(offsets.get(i), i == offsets.size() - 1);
                     }
+                    redone += offsets.size();
                 }
+            }
+            redo(partitions);
 
-                // handle committed transactions, set after image to them
-                for (Long tid : committedTids) {
-                    if (afterPages.containsKey(tid)) {
-                        List<Page> pages = afterPages.get(tid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
-                    }
+            // undo
+            List<Long> losers = new ArrayList<>();
+            for (RecoveryTransaction transaction : transactions.values()) {
+                if (transaction.status == BEGIN_RECORD) {
+                    losers.addAll(transaction.updates);
+                }
+            }
+            losers.sort(Collections.reverseOrder());
+            for (long offset : losers) {
+                readUpdateAt(reader, offset).apply(false);
+            }
+            // the losers are rolled back now; log that, so that a later
+            // recovery does not undo them over newer changes
+            for (Map.Entry<Long, RecoveryTransaction> entry : transactions.entrySet()) {
+                if (entry.getValue().status == BEGIN_RECORD) {
+                    beginRecord(ABORT_RECORD, entry.getKey());
+                    endRecord();
                 }
+            }
+            force();
+            reader.seek(fileEnd);
+            Debug.log("RECOVERY: redid " + redone + " records of " + dirtyPages.size()
+                    + " dirty pages, undid " + losers.size() + " records");
+        }
+    }
+
+    /**
+     * Finds the end of the log by checking records forward from a record
+     * boundary. The log ends at the first record whose length, start offset
+     * or checksum is wrong: a record torn by a crash, the zeros of a
+     * preallocated segment or the old records of a reused one. Records are
+     * checked as raw bytes, without decoding them.
+     */
+    private long findEnd(long from) throws IOException {
+        reader.seek(from);
+        byte[] record = new byte[0];
+        while (true) {
+            long offset = reader.getFilePointer();
+            try {
+                int type = reader.readInt();
+                int length = reader.readInt();
+                if (type < ABORT_RECORD || type > DELTA_RECORD || length < MIN_RECORD_SIZE
+                        || length > reader.length() - offset) {
+                    return offset;
+                }
+                if (record.length < length) {
+                    record = new byte[Math.max(length, 2 * record.length)];
+                }
+                reader.seek(offset);
+                reader.readFully(record, 0, length);
+                ByteBuffer trailer = ByteBuffer.wrap(record, length - LONG_SIZE - INT_SIZE, LONG_SIZE + INT_SIZE);
+                CRC32C crc = new CRC32C();
+                crc.update(record, 0, length - INT_SIZE);
+                if (trailer.getLong() != offset || trailer.getInt() != (int) crc.getValue()) {
+                    return offset;
+                }
+            } catch (EOFException e) {
+                return offset;
+            }
+        }
+    }
+
+    /** Number of threads that redo committed changes during recovery */
+    static final int RECOVERY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** A transaction table entry built by the analysis pass of recovery */
+    private static final class RecoveryTransaction {
+        /** BEGIN_RECORD while active, then COMMIT_RECORD or ABORT_RECORD */
+        int status = BEGIN_RECORD;
+        /** offsets of the transaction's update records, in log order */
+        final List<Long> updates = new ArrayList<>();
+    }
 
-                // handle activeTransaction between checkpoint
-                for (Map.Entry<Long, Long> entry : activeTransactions.entrySet()) {
-                    Long tid = entry.getKey();
-                    Long offset = entry.getValue();
-
-                    raf.seek(offset);
-                    while (raf.getFilePointer() != raf.length()) {
-                        int cpType = raf.readInt();
-                        long cpTid = raf.readLong();
-                        switch (cpType) {
-                            case UPDATE_RECORD -> {
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                Page targetPage = committedTids.contains(tid) ? after : before;
-
-                                if (cpTid == tid) {
-                                    Database.getCatalog().getDatabaseFile(targetPage.getId().getTableId()).writePage(targetPage);
-                                }
-                            }
-                            case CHECKPOINT_RECORD -> {
-                                int numTransactions = raf.readInt();
-
-                                while (numTransactions-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                            }
+    /** The key of one transaction's update records of one page during recovery */
+    private record PageUpdates(long tid, PageId pid) {
+    }
+
+    /** Read the UPDATE or DELTA record that starts at offset */
+    private PageDelta readUpdateAt(LogSegments.Reader in, long offset) throws IOException {
+        in.seek(offset);
+        int type = readType(in);
+        in.readLong();
+        return readUpdate(in, type);
+    }
+
+    /**
+     * Replays update records, one worker per partition. Each worker reads
+     * the log through its own file handle and replays its records in log
+     * order: a record mapped to true installs its new bytes, one mapped to
+     * false restores its old bytes.
+     */
+    private void redo(List<SortedMap<Long, Boolean>> partitions) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(partitions.size(), r -> {
+            Thread t = new Thread(r, "LogFile-redo");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (SortedMap<Long, Boolean> steps : partitions) {
+                if (steps.isEmpty()) {
+                    continue;
+                }
+                results.add(workers.submit(() -> {
+                    try (LogSegments.Reader in = new LogSegments.Reader(segments)) {
+                        for (Map.Entry<Long, Boolean> step : steps.entrySet()) {
+                            readUpdateAt(in, step.getKey()).apply(step.getValue());
                         }
-                        raf.readLong();
                     }
-                }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
             }
-         }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            workers.shutdown();
+        }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    public synchronized void print() throws IOException {
+        drain();
+        long curOffset = reader.getFilePointer();
 
-        raf.seek(0);
+        reader.seek(segments.firstOffset());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("checkpoint record at offset " + segments.getCheckpoint());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = readType(reader);
+                long cpTid = reader.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((reader.getFilePointer() - (2 * INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((reader.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
+                    System.out.println(reader.getFilePointer() + ": CHECKSUM: " + reader.readInt());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
+                    System.out.println(reader.getFilePointer() + ": CHECKSUM: " + reader.readInt());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
+                    System.out.println(reader.getFilePointer() + ": CHECKSUM: " + reader.readInt());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = reader.readInt();
+                    System.out.println((reader.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = reader.readLong();
+                        long firstRecord = reader.readLong();
+                        System.out.println((reader.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((reader.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    int numDirtyPages = reader.readInt();
+                    System.out.println((reader.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirtyPages);
+                    while (numDirtyPages-- > 0) {
+                        PageId pid = PageCodec.readPageId(reader);
+                        long recOffset = reader.readLong();
+                        System.out.println((reader.getFilePointer() - LONG_SIZE) + ": PAGE " + pid.getTableId() + ":" + pid.getPageNumber() + " REDO FROM: " + recOffset);
+                    }
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
+                    System.out.println(reader.getFilePointer() + ": CHECKSUM: " + reader.readInt());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
+                    System.out.println(reader.getFilePointer() + ": PREV LSN: " + reader.readLong());
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    long start = reader.getFilePointer();
+                    Page before = readPageData(reader);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long middle = reader.getFilePointer();
+                    Page after = readPageData(reader);
 
                     System.out.println(start + ": before image table id " + before.getId().getTableId());
                     System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
@@ -676,9 +1050,22 @@ public class LogFile {
 
                     System.out.println(middle + ": after image table id " + after.getId().getTableId());
                     System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println((middle + INT_SIZE) + " TO " + (reader.getFilePointer()) + ": page data");
+
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
+                    System.out.println(reader.getFilePointer() + ": CHECKSUM: " + reader.readInt());
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+                    System.out.println(reader.getFilePointer() + ": PREV LSN: " + reader.readLong());
+
+                    PageDelta delta = PageDelta.read(reader);
+                    System.out.println("table id " + delta.pid.getTableId() + ", page number "
+                            + delta.pid.getPageNumber() + ", " + delta.numRanges() + " changed ranges");
+
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
+                    System.out.println(reader.getFilePointer() + ": CHECKSUM: " + reader.readInt());
 
                     break;
                 }
@@ -690,11 +1077,35 @@ public class LogFile {
         }
 
         // Return the file pointer to its original position
-        raf.seek(curOffset);
+        reader.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force the log to disk through the record with the given LSN, if it
+        is not durable yet.
+
+        @param lsn the LSN of the record, or NO_LSN
+    */
+    public void force(long lsn) throws IOException {
+        if (getFlushedLsn() > lsn) {
+            return;
+        }
+        force();
+    }
+
+    /** Force everything appended so far to disk. Called without this
+        monitor, the caller joins the current group commit; called with
+        it (from within a LogFile operation), it forces directly. */
+    public void force() throws IOException {
+        if (!Thread.holdsLock(this)) {
+            awaitFlushed(getEndLsn());
+            return;
+        }
+        drain();
+        synchronized (forceLock) {
+            segments.force();
+            forces++;
+        }
+        flushed(getEndLsn());
     }
 
 }
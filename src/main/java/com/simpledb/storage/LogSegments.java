@@ -0,0 +1,418 @@
+package com.simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * next to the log file, named after it with the hex offset of their first
+ * byte appended ("log.0000000000100000".) Offsets are positions in the
+ * whole log and never change, so truncating the log drops whole segments
+ * instead of copying the live tail.
+ * <p>
+ * Each segment starts with a header holding a magic number, the segment's
+ * size, the log offset of its first data byte and the offset of the last
+ * checkpoint record; only the checkpoint slot of the first segment is
+ * authoritative. Segments are preallocated with zeros when created, so
+ * appends never grow a file. Segments dropped by truncation are renamed to
+ * spares ("log.spare0") and reused for the next segments the log needs.
+ * <p>
+ * Reads and writes are positional, so several {@link Reader}s may read the
+ * log concurrently with one writer. The caller must not force the log
+ * while it is being truncated.
+ */
+final class LogSegments {
+
+    /** "SDBL" */
+    private static final int MAGIC = 0x5344424c;
+    /** magic, segment size, first data offset, checkpoint offset */
+    static final int HEADER_SIZE = 2 * LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+    private static final int CHECKPOINT_SLOT = 2 * LogFile.INT_SIZE + LogFile.LONG_SIZE;
+    /** spares kept for reuse; any more are deleted */
+    private static final int MAX_SPARES = 4;
+
+    private static final class Segment {
+        final File file;
+        final FileChannel channel;
+        final int size;
+        /** log offset of the first data byte */
+        final long base;
+
+        Segment(File file, FileChannel channel, int size, long base) {
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+            this.base = base;
+        }
+
+        long end() {
+            return base + size - HEADER_SIZE;
+        }
+    }
+
+    private final File logFile;
+    private volatile int segmentSize;
+
+    /** live segments in log order; protected by this */
+    private final List<Segment> segments = new ArrayList<>();
+    /** dropped segments waiting to be reused; protected by this */
+    private final List<Segment> spares = new ArrayList<>();
+    /** segments written since the last force; protected by this */
+    private final Set<Segment> unforced = new HashSet<>();
+    /** offset just past the last byte of the log; protected by this */
+    private long length;
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+
+    /**
+     * Opens the segments of the log stored under the given name. The log
+     * extends to the end of its last segment until {@link #setLength} says
+     * where the data ends.
+     *
+     * @param logFile the log file name that segment names are derived from
+     * @param segmentSize the size of new segments, header included
+     */
+    LogSegments(File logFile, int segmentSize) throws IOException {
+        this.logFile = logFile.getAbsoluteFile();
+        setSegmentSize(segmentSize);
+        for (File f : files()) {
+            String suffix = f.getName().substring(this.logFile.getName().length() + 1);
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            boolean valid = header.remaining() == HEADER_SIZE && header.getInt() == MAGIC;
+            int size = valid ? header.getInt() : 0;
+            long base = valid ? header.getLong() : -1;
+            if (suffix.startsWith("spare") || !valid || !suffix.equals(name(base))) {
+                // a spare, or a segment that was being recycled
+                spares.add(new Segment(f, channel, size, -1));
+                continue;
+            }
+            segments.add(new Segment(f, channel, size, base));
+        }
+        segments.sort(Comparator.comparingLong(s -> s.base));
+        if (!segments.isEmpty()) {
+            ByteBuffer slot = ByteBuffer.allocate(LogFile.LONG_SIZE);
+            segments.get(0).channel.read(slot, CHECKPOINT_SLOT);
+            checkpoint = slot.flip().getLong();
+        }
+        length = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).end();
+    }
+
+    private File[] files() {
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getParentFile().listFiles((dir, n) -> n.startsWith(prefix));
+        return files == null ? new File[0] : files;
+    }
+
+    private static String name(long base) {
+        return String.format("%016x", base);
+    }
+
+    /** Sets the size of segments created from now on, header included. */
+    void setSegmentSize(int segmentSize) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segment size must exceed the header");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /** Returns the offset of the first byte still in the log. */
+    synchronized long firstOffset() {
+        return segments.isEmpty() ? 0 : segments.get(0).base;
+    }
+
+    /** Returns the offset just past the last byte of the log. */
+    synchronized long length() {
+        return length;
+    }
+
+    /** Sets where the log ends; bytes past it are overwritten by appends. */
+    synchronized void setLength(long length) {
+        this.length = length;
+    }
+
+    /** Returns the file of the live segment holding offset, or null if none does. */
+    synchronized File fileAt(long offset) throws IOException {
+        Segment s = segmentFor(offset, false);
+        return s == null ? null : s.file;
+    }
+
+    /** Returns where offset lies within the file {@link #fileAt} returns. */
+    synchronized long positionAt(long offset) throws IOException {
+        Segment s = segmentFor(offset, false);
+        if (s == null) {
+            throw new EOFException("offset " + offset + " is no longer in the log");
+        }
+        return HEADER_SIZE + offset - s.base;
+    }
+
+    /** Returns the number of live segments. */
+    synchronized int numSegments() {
+        return segments.size();
+    }
+
+    /** Returns the offset of the last checkpoint record, or -1 if none. */
+    synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Records the offset of the last checkpoint record in the first
+     * segment's header. It is durable with the next {@link #force}.
+     */
+    synchronized void setCheckpoint(long offset) throws IOException {
+        checkpoint = offset;
+        if (!segments.isEmpty()) {
+            writeCheckpoint(segments.get(0));
+        }
+    }
+
+    private void writeCheckpoint(Segment s) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(LogFile.LONG_SIZE);
+        slot.putLong(checkpoint).flip();
+        s.channel.write(slot, CHECKPOINT_SLOT);
+        unforced.add(s);
+    }
+
+    /**
+     * Deletes every segment and starts an empty log at offset 0.
+     */
+    synchronized void reset() throws IOException {
+        for (Segment s : segments) {
+            s.channel.close();
+            s.file.delete();
+        }
+        segments.clear();
+        unforced.clear();
+        length = 0;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+    }
+
+    /**
+     * Writes data at the given offset, adding segments as needed. The
+     * offset must not be below the start of the log.
+     */
+    void write(long offset, byte[] data) throws IOException {
+        int done = 0;
+        while (done < data.length) {
+            Segment s;
+            synchronized (this) {
+                s = segmentFor(offset + done, true);
+                unforced.add(s);
+            }
+            long pos = offset + done;
+            int n = (int) Math.min(data.length - done, s.end() - pos);
+            ByteBuffer buf = ByteBuffer.wrap(data, done, n);
+            long at = HEADER_SIZE + pos - s.base;
+            while (buf.hasRemaining()) {
+                at += s.channel.write(buf, at);
+            }
+            done += n;
+        }
+        synchronized (this) {
+            length = Math.max(length, offset + data.length);
+        }
+    }
+
+    /**
+     * Reads up to len bytes at the given offset.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(long offset, byte[] b, int off, int len) throws IOException {
+        Segment s;
+        synchronized (this) {
+            if (offset >= length) {
+                return -1;
+            }
+            s = segmentFor(offset, false);
+            if (s == null) {
+                throw new EOFException("offset " + offset + " is no longer in the log");
+            }
+            len = (int) Math.min(len, Math.min(length, s.end()) - offset);
+        }
+        int n = s.channel.read(ByteBuffer.wrap(b, off, len), HEADER_SIZE + offset - s.base);
+        return n < 0 ? -1 : n;
+    }
+
+    /** Returns the segment holding offset, appending segments if create is set. */
+    private Segment segmentFor(long offset, boolean create) throws IOException {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            if (offset >= s.base) {
+                if (offset < s.end()) {
+                    return s;
+                }
+                break;
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        while (true) {
+            long base = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).end();
+            Segment s = addSegment(base);
+            if (offset < s.end()) {
+                return s;
+            }
+        }
+    }
+
+    /** Appends a segment starting at base, reusing a spare if there is one. */
+    private Segment addSegment(long base) throws IOException {
+        File file = new File(logFile.getParentFile(), logFile.getName() + "." + name(base));
+        Segment spare = null;
+        while (!spares.isEmpty() && spare == null) {
+            Segment s = spares.remove(spares.size() - 1);
+            if (s.size == segmentSize && s.file.renameTo(file)) {
+                spare = s;
+            } else {
+                s.channel.close();
+                s.file.delete();
+            }
+        }
+        FileChannel channel;
+        if (spare != null) {
+            channel = spare.channel;
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            for (long at = 0; at < segmentSize; ) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), segmentSize - at));
+                at += channel.write(zeros, at);
+            }
+        }
+        // old records left in a reused segment are told apart from new ones
+        // by their start offsets, which are from before base
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(segmentSize).putLong(base).putLong(checkpoint).flip();
+        channel.write(header, 0);
+        channel.force(true);
+        Segment s = new Segment(file, channel, segmentSize, base);
+        segments.add(s);
+        return s;
+    }
+
+    /**
+     * Drops the segments that hold only bytes before offset. The first
+     * remaining segment takes over the checkpoint slot before they go, so a
+     * crash midway leaves a log that still starts at a valid segment.
+     */
+    synchronized void truncateBefore(long offset) throws IOException {
+        int drop = 0;
+        while (drop < segments.size() - 1 && segments.get(drop).end() <= offset) {
+            drop++;
+        }
+        if (drop == 0) {
+            return;
+        }
+        Segment first = segments.get(drop);
+        writeCheckpoint(first);
+        first.channel.force(true);
+        for (int i = 0; i < drop; i++) {
+            Segment s = segments.remove(0);
+            unforced.remove(s);
+            File spare = spareFile();
+            if (spares.size() < MAX_SPARES && s.file.renameTo(spare)) {
+                spares.add(new Segment(spare, s.channel, s.size, -1));
+            } else {
+                s.channel.close();
+                s.file.delete();
+            }
+        }
+    }
+
+    private File spareFile() {
+        for (int i = 0; ; i++) {
+            File f = new File(logFile.getParentFile(), logFile.getName() + ".spare" + i);
+            if (!f.exists()) {
+                return f;
+            }
+        }
+    }
+
+    /** Forces everything written so far to disk. */
+    void force() throws IOException {
+        List<Segment> toForce;
+        synchronized (this) {
+            toForce = new ArrayList<>(unforced);
+            unforced.clear();
+        }
+        for (Segment s : toForce) {
+            s.channel.force(true);
+        }
+    }
+
+    /** Closes the segment files. */
+    synchronized void close() throws IOException {
+        for (Segment s : segments) {
+            s.channel.close();
+        }
+        for (Segment s : spares) {
+            s.channel.close();
+        }
+    }
+
+    /**
+     * A read cursor over the log, with the DataInput methods of a
+     * RandomAccessFile. Each thread reading the log needs its own.
+     */
+    static final class Reader extends DataInputStream {
+
+        Reader(LogSegments log) {
+            super(new Cursor(log));
+        }
+
+        void seek(long offset) {
+            ((Cursor) in).pos = offset;
+        }
+
+        long getFilePointer() {
+            return ((Cursor) in).pos;
+        }
+
+        long length() {
+            return ((Cursor) in).log.length();
+        }
+    }
+
+    private static final class Cursor extends InputStream {
+        final LogSegments log;
+        long pos;
+
+        Cursor(LogSegments log) {
+            this.log = log;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = log.read(pos, b, off, len);
+            if (n > 0) {
+                pos += n;
+            }
+            return n;
+        }
+    }
+}
@@ -58,4 +58,17 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Returns the LSN of the last log record holding this page's contents,
+     * or {@link LogFile#NO_LSN} if the page was not logged since it was
+     * read. The page LSN is kept in memory only; the log must be durable
+     * up to it before the page may be written to disk.
+     */
+    long getLSN();
+
+    /**
+     * Sets the LSN of the last log record holding this page's contents.
+     */
+    void setLSN(long lsn);
 }
@@ -0,0 +1,95 @@
+package com.simpledb.storage;
+
+import com.simpledb.common.DbException;
+
+import java.io.IOException;
+
+/**
+ * PageCleaner is a background writer for a NO-FORCE BufferPool. Committed
+ * changes are only logged at commit; this thread writes the pages holding
+ * them back to disk, so commits only force the log and eviction nearly
+ * always finds a clean victim. Under STEAL it also writes pages that active
+ * transactions dirtied a while ago, through the WAL as eviction does (see
+ * {@link BufferPool#setSteal}).
+ * <p>
+ * The thread is never interrupted, since an interrupt during file I/O would
+ * close the table's FileChannel; {@link #shutdown} sets a flag instead.
+ */
+class PageCleaner extends Thread {
+
+    private final BufferPool pool;
+
+    private final long intervalMillis;
+
+    private final long stealAgeMillis;
+
+    private volatile boolean stopped = false;
+
+    /** set when there may be new work, so a wake-up is never lost */
+    private boolean signalled = false;
+
+    /**
+     * @param pool the buffer pool whose committed pages to write back
+     * @param intervalMillis how long to sleep when there is nothing to write
+     * @param stealAgeMillis how long a page of an active transaction stays
+     *                       dirty before it is written under STEAL
+     */
+    PageCleaner(BufferPool pool, long intervalMillis, long stealAgeMillis) {
+        super("BufferPool-cleaner");
+        this.pool = pool;
+        this.intervalMillis = intervalMillis;
+        this.stealAgeMillis = stealAgeMillis;
+        setDaemon(true);
+    }
+
+    /**
+     * Tells the cleaner that there are new pages to write.
+     */
+    synchronized void wakeUp() {
+        signalled = true;
+        notify();
+    }
+
+    /**
+     * Stops the cleaner and waits for the batch in progress to finish.
+     */
+    void shutdown() {
+        stopped = true;
+        wakeUp();
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            int written = 0;
+            try {
+                written = pool.cleanPages(null) + pool.writeOldPages(stealAgeMillis);
+            } catch (IOException | DbException e) {
+                e.printStackTrace();
+            }
+            if (written == 0) {
+                synchronized (this) {
+                    try {
+                        if (!signalled && !stopped) {
+                            wait(intervalMillis);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    signalled = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.simpledb.storage;
+
+import com.simpledb.common.Database;
+import com.simpledb.index.BTreeFile;
+import com.simpledb.index.BTreeHeaderPage;
+import com.simpledb.index.BTreeInternalPage;
+import com.simpledb.index.BTreeLeafPage;
+import com.simpledb.index.BTreePageId;
+import com.simpledb.index.BTreeRootPtrPage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * PageCodec is the table of page and page id types that can appear in log
+ * records. Each type is registered under a small numeric code, which the
+ * log stores in place of the class name, together with a function that
+ * rebuilds it; reading a record never goes through reflection.
+ * <p>
+ * A page id is written as its one-byte type code, the number of ints it
+ * serializes to and those ints. A page is written as its one-byte type
+ * code, its id, and the length and bytes of its page data.
+ * <p>
+ * The pages of HeapFile and BTreeFile are registered here. Other DbFile
+ * implementations must {@link #registerPage register} their page types
+ * before they log a page.
+ *
+ * @Threadsafe
+ */
+public final class PageCodec {
+
+    /** Rebuilds a page from its id and page data. */
+    @FunctionalInterface
+    public interface Decoder {
+        Page decode(PageId pid, byte[] data) throws IOException;
+    }
+
+    public static final int HEAP_PAGE_ID = 1;
+    public static final int BTREE_PAGE_ID = 2;
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_LEAF_PAGE = 2;
+    public static final int BTREE_INTERNAL_PAGE = 3;
+    public static final int BTREE_HEADER_PAGE = 4;
+    public static final int BTREE_ROOT_PTR_PAGE = 5;
+
+    private static final int MAX_CODE = 255;
+
+    private static final Map<Integer, Function<int[], PageId>> idDecoders = new ConcurrentHashMap<>();
+    private static final Map<Integer, Decoder> pageDecoders = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Integer> idCodes = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Integer> pageCodes = new ConcurrentHashMap<>();
+
+    static {
+        registerId(HEAP_PAGE_ID, HeapPageId.class, a -> new HeapPageId(a[0], a[1]));
+        registerId(BTREE_PAGE_ID, BTreePageId.class, a -> new BTreePageId(a[0], a[1], a[2]));
+
+        registerPage(HEAP_PAGE, HeapPage.class, (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        registerPage(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        registerPage(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+    }
+
+    private PageCodec() {
+    }
+
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    private static void checkCode(int code, Map<Integer, ?> decoders) {
+        if (code < 1 || code > MAX_CODE) {
+            throw new IllegalArgumentException("type code must be between 1 and " + MAX_CODE);
+        }
+        if (decoders.containsKey(code)) {
+            throw new IllegalArgumentException("type code " + code + " is already registered");
+        }
+    }
+
+    /**
+     * Registers a page id type.
+     *
+     * @param code the code stored in the log, between 1 and 255
+     * @param idClass the page id class
+     * @param decoder rebuilds an id from the ints {@link PageId#serialize} returned
+     */
+    public static synchronized void registerId(int code, Class<? extends PageId> idClass,
+                                               Function<int[], PageId> decoder) {
+        checkCode(code, idDecoders);
+        idDecoders.put(code, decoder);
+        idCodes.put(idClass, code);
+    }
+
+    /**
+     * Registers a page type.
+     *
+     * @param code the code stored in the log, between 1 and 255
+     * @param pageClass the page class
+     * @param decoder rebuilds a page from its id and {@link Page#getPageData}
+     */
+    public static synchronized void registerPage(int code, Class<? extends Page> pageClass, Decoder decoder) {
+        checkCode(code, pageDecoders);
+        pageDecoders.put(code, decoder);
+        pageCodes.put(pageClass, code);
+    }
+
+    private static int codeOf(Map<Class<?>, Integer> codes, Object o) throws IOException {
+        Integer code = codes.get(o.getClass());
+        if (code == null) {
+            throw new IOException("no log codec registered for " + o.getClass().getName());
+        }
+        return code;
+    }
+
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeByte(codeOf(idCodes, pid));
+        out.writeByte(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    public static PageId readPageId(DataInput in) throws IOException {
+        int code = in.readUnsignedByte();
+        Function<int[], PageId> decoder = idDecoders.get(code);
+        if (decoder == null) {
+            throw new IOException("unknown page id type " + code);
+        }
+        int[] pageInfo = new int[in.readUnsignedByte()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = in.readInt();
+        }
+        return decoder.apply(pageInfo);
+    }
+
+    public static void writePage(DataOutput out, Page p) throws IOException {
+        out.writeByte(codeOf(pageCodes, p));
+        writePageId(out, p.getId());
+        byte[] pageData = p.getPageData();
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
+
+    public static Page readPage(DataInput in) throws IOException {
+        int code = in.readUnsignedByte();
+        Decoder decoder = pageDecoders.get(code);
+        if (decoder == null) {
+            throw new IOException("unknown page type " + code);
+        }
+        PageId pid = readPageId(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return decoder.decode(pid, pageData);
+    }
+}
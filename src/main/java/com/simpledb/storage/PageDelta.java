@@ -0,0 +1,172 @@
+package com.simpledb.storage;
+
+import com.simpledb.common.Database;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the physiological form of a page update in the log: the byte
+ * ranges in which a page's after image differs from its before image, with
+ * the old and new bytes of each range. Inserting or deleting a single tuple
+ * of a HeapPage or a B+ tree leaf touches a header byte and a slot or two,
+ * so its delta is a few dozen bytes instead of two full page images.
+ * <p>
+ * Deltas are always taken against the page's before-image, i.e. its last
+ * committed contents, so a later delta of a transaction need not cover
+ * bytes an earlier one changed. Redo therefore replays each of a committed
+ * transaction's deltas of a page from the page's recLSN on, in log order:
+ * the earlier ones restore their old bytes and the last one installs its
+ * new bytes. Undo restores the old bytes of a transaction's deltas, newest
+ * first. Both read the page from disk, patch it and write it back.
+ * <p>
+ * A delta can also stand for a full-image UPDATE record, covering the whole
+ * page; applying it then just writes the image.
+ */
+final class PageDelta {
+
+    /** equal bytes between two changed ranges that are cheaper to copy than a new range */
+    private static final int MERGE_GAP = 2 * LogFile.INT_SIZE;
+
+    final PageId pid;
+    private final int[] offsets;
+    private final byte[][] oldBytes;
+    private final byte[][] newBytes;
+    /** the page images, if this delta stands for an UPDATE record */
+    private final Page before, after;
+
+    private PageDelta(PageId pid, int[] offsets, byte[][] oldBytes, byte[][] newBytes) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.oldBytes = oldBytes;
+        this.newBytes = newBytes;
+        this.before = null;
+        this.after = null;
+    }
+
+    private PageDelta(Page before, Page after) {
+        this.pid = after.getId();
+        this.offsets = null;
+        this.oldBytes = null;
+        this.newBytes = null;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Returns a delta that writes the full images of an UPDATE record.
+     */
+    static PageDelta ofImages(Page before, Page after) {
+        return new PageDelta(before, after);
+    }
+
+    /**
+     * Computes the delta from before to after.
+     *
+     * @return the delta, or null if it would not be smaller than one page
+     *         image, in which case the full images should be logged
+     */
+    static PageDelta diff(Page before, Page after) {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        if (a.length != b.length) {
+            return null;
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int size = 0;
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend over short runs of equal bytes
+            for (int j = end; j < a.length && j < end + MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            size += MERGE_GAP + 2 * (end - start);
+            if (size >= a.length) {
+                return null;
+            }
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            oldBytes[r] = Arrays.copyOfRange(b, start, end);
+            newBytes[r] = Arrays.copyOfRange(a, start, end);
+        }
+        return new PageDelta(after.getId(), offsets, oldBytes, newBytes);
+    }
+
+    /** Returns the number of changed ranges, or -1 for full images. */
+    int numRanges() {
+        return offsets == null ? -1 : offsets.length;
+    }
+
+    /**
+     * Writes the delta in the format read by {@link #read}: the page id
+     * (see {@link PageCodec}), then a count of ranges and an offset, a length,
+     * the old bytes and the new bytes of each range. The page class is not
+     * needed, since the table's DbFile decodes the patched page.
+     */
+    void write(DataOutput out) throws IOException {
+        PageCodec.writePageId(out, pid);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(oldBytes[r].length);
+            out.write(oldBytes[r]);
+            out.write(newBytes[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = PageCodec.readPageId(in);
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] oldBytes = new byte[numRanges][];
+        byte[][] newBytes = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            oldBytes[r] = new byte[length];
+            in.readFully(oldBytes[r]);
+            newBytes[r] = new byte[length];
+            in.readFully(newBytes[r]);
+        }
+        return new PageDelta(pid, offsets, oldBytes, newBytes);
+    }
+
+    /**
+     * Applies the delta to the page on disk.
+     *
+     * @param redo true to install the new bytes, false to restore the old ones
+     */
+    void apply(boolean redo) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (offsets == null) {
+            file.writePage(redo ? after : before);
+            return;
+        }
+        byte[] data = file.readPage(pid).getPageData();
+        for (int r = 0; r < offsets.length; r++) {
+            byte[] bytes = redo ? newBytes[r] : oldBytes[r];
+            System.arraycopy(bytes, 0, data, offsets[r], bytes.length);
+        }
+        file.writePage(file.decodePage(pid, data));
+    }
+}
@@ -0,0 +1,201 @@
+package com.simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PageFileChannel is the long-lived I/O handle shared by the page reads and
+ * writes of a single DbFile. Instead of opening a RandomAccessFile for every
+ * page access, a DbFile keeps one PageFileChannel for its whole lifetime and
+ * does all of its I/O through it.
+ * <p>
+ * All reads and writes are positional (see {@link FileChannel#read(ByteBuffer, long)}),
+ * so they never touch a shared file pointer and concurrent misses on the same
+ * file do not serialize on each other.
+ * <p>
+ * For read-mostly tables the channel can optionally serve reads from a
+ * {@link MappedByteBuffer} covering the whole file. Writes always go through
+ * the channel; since the mapping is shared with the OS page cache, they are
+ * visible to subsequent mapped reads. The mapping is grown on demand when a
+ * read falls past its end.
+ *
+ * @Threadsafe
+ */
+public class PageFileChannel {
+
+    private final File file;
+
+    private volatile FileChannel channel;
+
+    private volatile boolean memoryMapped;
+
+    /** read-only mapping of the file, protected by this */
+    private MappedByteBuffer mapped;
+
+    /**
+     * Creates a channel backed by the specified file. The file is not opened
+     * until the first read or write.
+     *
+     * @param f the file to read and write pages from
+     */
+    public PageFileChannel(File f) {
+        this.file = f;
+    }
+
+    /**
+     * Returns the File backing this channel.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Enables or disables serving reads from a memory-mapped view of the file.
+     * Intended for read-mostly tables, where it saves a copy from the kernel
+     * on every buffer pool miss.
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            mapped = null;
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Returns the open channel, opening it if needed. Only writes create the
+     * file; for a read of a missing file this returns null.
+     *
+     * @param create whether to create the file if it does not exist
+     */
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel fc = channel;
+        if (fc == null) {
+            synchronized (this) {
+                fc = channel;
+                if (fc == null) {
+                    if (!create && !file.exists()) {
+                        return null;
+                    }
+                    fc = create
+                            ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE)
+                            : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel = fc;
+                }
+            }
+        }
+        return fc;
+    }
+
+    /**
+     * Reads up to buf.length bytes starting at the specified offset of the
+     * file. Bytes past the end of the file are left untouched.
+     *
+     * @param offset the position in the file to start reading from
+     * @param buf the buffer to fill
+     * @return the number of bytes read, or -1 if offset is past the end of the file
+     */
+    public int read(long offset, byte[] buf) throws IOException {
+        if (memoryMapped) {
+            MappedByteBuffer view = mapping(offset + buf.length);
+            if (view != null) {
+                if (offset >= view.limit()) return -1;
+                int len = (int) Math.min(buf.length, view.limit() - offset);
+                view.get((int) offset, buf, 0, len);
+                return len;
+            }
+        }
+        FileChannel fc = channel(false);
+        if (fc == null) {
+            return buf.length > 0 ? -1 : 0;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            int n = fc.read(bb, offset + bb.position());
+            if (n < 0) break;
+        }
+        return bb.position() == 0 && buf.length > 0 ? -1 : bb.position();
+    }
+
+    /**
+     * Returns a read-only mapping covering at least the first end bytes of the
+     * file (or the whole file, if it is shorter), or null if the file is too
+     * large to be mapped as a single buffer or does not exist.
+     */
+    private synchronized MappedByteBuffer mapping(long end) throws IOException {
+        if (mapped != null && (mapped.limit() >= end || mapped.limit() == size())) {
+            return mapped;
+        }
+        long size = size();
+        FileChannel fc = channel(false);
+        if (size > Integer.MAX_VALUE || fc == null) {
+            return null;
+        }
+        mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return mapped;
+    }
+
+    /**
+     * Writes all of data to the file starting at the specified offset,
+     * growing the file if needed.
+     *
+     * @param offset the position in the file to start writing at
+     * @param data the bytes to write
+     */
+    public void write(long offset, byte[] data) throws IOException {
+        write(offset, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes the remaining bytes of data to the file starting at the specified
+     * offset, growing the file if needed.
+     *
+     * @param offset the position in the file to start writing at
+     * @param data the bytes to write
+     */
+    public void write(long offset, ByteBuffer data) throws IOException {
+        FileChannel fc = channel(true);
+        long pos = offset;
+        while (data.hasRemaining()) {
+            pos += fc.write(data, pos);
+        }
+    }
+
+    /**
+     * Returns the current size of the file in bytes.
+     */
+    public long size() throws IOException {
+        FileChannel fc = channel;
+        return fc != null ? fc.size() : file.length();
+    }
+
+    /**
+     * Forces any writes made through this channel to the storage device.
+     */
+    public void force() throws IOException {
+        FileChannel fc = channel;
+        if (fc != null) {
+            fc.force(false);
+        }
+    }
+
+    /**
+     * Closes the underlying channel and drops the mapping. A later read or
+     * write reopens it.
+     */
+    public synchronized void close() throws IOException {
+        mapped = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
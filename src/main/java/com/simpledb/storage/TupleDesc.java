@@ -45,6 +45,9 @@ public class TupleDesc implements Serializable {
 
     private TDItem[] tdItems;
 
+    /** byte offset of each field within a serialized tuple, computed lazily */
+    private transient int[] fieldOffsets;
+
     /**
      * @return
      *        An iterator which iterates over all the field TDItems
@@ -163,6 +166,28 @@ public class TupleDesc implements Serializable {
         return Arrays.stream(tdItems).mapToInt(e -> e.fieldType.getLen()).reduce(0, Integer::sum);
     }
 
+    /**
+     * Gets the byte offset of the ith field within a serialized tuple of this
+     * TupleDesc, i.e. the total size of the fields before it.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset of the ith field
+     */
+    public int getFieldOffset(int i) {
+        int[] offsets = fieldOffsets;
+        if (offsets == null) {
+            offsets = new int[tdItems.length];
+            int offset = 0;
+            for (int j = 0; j < tdItems.length; j++) {
+                offsets[j] = offset;
+                offset += tdItems[j].fieldType.getLen();
+            }
+            fieldOffsets = offsets;
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -3,129 +3,402 @@ package com.simpledb.transaction;
 import com.simpledb.common.Permissions;
 import com.simpledb.utils.WaitForGraph;
 
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * LockManager grants locks on arbitrary objects, usually PageIds, on behalf
+ * of transactions. Besides the shared (S) and exclusive (X) locks that
+ * READ_ONLY and READ_WRITE requests take, it grants the intention modes of
+ * {@link LockMode} for locking containers such as tables.
+ * <p>
+ * Each locked object has a lock head holding a FIFO queue of requests: the
+ * granted ones, then pending upgrades, then new requests. Lock heads live
+ * in a hash table split into stripes, each guarded by its own monitor, so
+ * requests for objects in different stripes never contend. A request that
+ * cannot be granted waits on its own monitor; releasing a lock grants the
+ * waiters at the front of the queue that are compatible with everything
+ * before them and wakes only those.
+ * <p>
+ * A transaction asking for more than the mode it holds, e.g. X on a page it
+ * has read, gets it at once if the other holders allow. Otherwise the
+ * upgrade waits ahead of every new request, keeping the lock it holds,
+ * until the other holders drain.
+ * <p>
+ * Deadlocks are left to a detector thread, which runs only while some
+ * request is waiting. Every DETECT_INTERVAL_MS it builds the wait-for graph
+ * from the lock queues and aborts the youngest transaction of each cycle
+ * by withdrawing its waiting requests. Acquiring a lock never walks the
+ * graph.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
 
-    private final Map<Object, Set<TransactionId>> rLockMap;
+    private static final int STRIPES = 64;
+    /** how often the deadlock detector looks for cycles while requests wait */
+    private static final long DETECT_INTERVAL_MS = 20;
 
-    private final Map<Object, TransactionId> wLockMap;
+    /** A transaction's request for a lock on one object. */
+    private static final class Request {
+        final TransactionId tid;
+        LockMode mode;
+        /** the granted request this one upgrades, if any */
+        final Request upgrades;
+        /** set under the stripe monitor; the waiter reads it under its own */
+        volatile boolean granted;
+        volatile boolean cancelled;
 
-    private final WaitForGraph waitForGraph;
+        Request(TransactionId tid, LockMode mode, Request upgrades) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrades = upgrades;
+        }
+
+        /** Returns whether this request must wait for other, which is ahead of it. */
+        boolean waitsFor(Request other) {
+            return !other.tid.equals(tid) && !mode.isCompatible(other.mode);
+        }
+    }
+
+    /** The request queue of one locked object; protected by its stripe. */
+    private static final class LockHead {
+        final List<Request> queue = new ArrayList<>();
+
+        Request find(TransactionId tid, boolean granted) {
+            for (Request r : queue) {
+                if (r.tid.equals(tid) && r.granted == granted) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        /** Returns where a new upgrade goes: after the granted requests and earlier upgrades. */
+        int upgradeSlot() {
+            int i = 0;
+            while (i < queue.size() && (queue.get(i).granted || queue.get(i).upgrades != null)) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    private static final class Stripe {
+        final Map<Object, LockHead> heads = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** objects each transaction holds or waits for a lock on */
+    private final Map<TransactionId, Set<Object>> lockedBy = new ConcurrentHashMap<>();
+
+    private final Object detectorLock = new Object();
+    /** threads waiting for a lock; protected by detectorLock */
+    private int waiters;
+    /** the running deadlock detector, if any; protected by detectorLock */
+    private Thread detector;
 
     public LockManager() {
-        this.rLockMap = new ConcurrentHashMap<>();
-        this.wLockMap = new ConcurrentHashMap<>();
-        this.waitForGraph = new WaitForGraph();
-    }
-
-    public synchronized boolean acquireLock(TransactionId tid, Permissions perm, Object o) throws TransactionAbortedException, InterruptedException {
-        switch (perm) {
-            case READ_ONLY -> {
-                TransactionId wOwner = wLockMap.getOrDefault(o, null);
-                if (wOwner == null) {
-                    // no one holds wLock, so it can acquire rLock
-                    Set<TransactionId> rOwner = rLockMap.getOrDefault(o, null);
-                    if (rOwner == null) {
-                        Set<TransactionId> tidList = new HashSet<>();
-                        tidList.add(tid);
-                        rLockMap.put(o, tidList);
-                        System.out.println(tid + " acquire " + o + " read lock success");
-                        return true;
-                    }
-                    rOwner.add(tid);
-                    System.out.println(tid + " acquire " + o + " read lock success");
-                    return true;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripeFor(Object o) {
+        return stripes[Math.floorMod(o.hashCode(), STRIPES)];
+    }
+
+    /**
+     * Acquires a shared lock on o for a READ_ONLY request and an exclusive
+     * one for READ_WRITE, waiting until it is granted.
+     *
+     * @return true if tid held no lock on o before
+     * @throws TransactionAbortedException if tid is chosen as a deadlock
+     *         victim or the wait is interrupted
+     */
+    public boolean acquireLock(TransactionId tid, Permissions perm, Object o) throws TransactionAbortedException {
+        return acquireLock(tid, LockMode.of(perm), o);
+    }
+
+    /**
+     * Acquires a lock on o in the given mode for tid, waiting until it is
+     * granted. If tid already holds a lock on o that does not cover mode,
+     * the lock is upgraded to the weakest mode covering both.
+     *
+     * @return true if tid held no lock on o before
+     * @throws TransactionAbortedException if tid is chosen as a deadlock
+     *         victim or the wait is interrupted
+     */
+    public boolean acquireLock(TransactionId tid, LockMode mode, Object o) throws TransactionAbortedException {
+        Stripe stripe = stripeFor(o);
+        Request req;
+        Request held;
+        synchronized (stripe) {
+            LockHead head = stripe.heads.computeIfAbsent(o, k -> new LockHead());
+            held = head.find(tid, true);
+            if (held != null && held.mode.covers(mode)) {
+                return false;
+            }
+            req = head.find(tid, false);
+            if (req != null) {
+                // another thread of tid is already waiting for this lock
+                req.mode = req.mode.combine(mode);
+            } else if (held != null) {
+                req = new Request(tid, held.mode.combine(mode), held);
+                head.queue.add(head.upgradeSlot(), req);
+            } else {
+                req = new Request(tid, mode, null);
+                head.queue.add(req);
+                lockedBy.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(o);
+            }
+            grantWaiters(head);
+            if (req.granted) {
+                return held == null;
+            }
+        }
+        startWaiting();
+        try {
+            synchronized (req) {
+                while (!req.granted && !req.cancelled) {
+                    req.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(req, o);
+            throw new TransactionAbortedException();
+        } finally {
+            stopWaiting();
+        }
+        if (!req.granted) {
+            throw new TransactionAbortedException();
+        }
+        return held == null;
+    }
+
+    /**
+     * Grants the waiting requests at the front of the queue that are
+     * compatible with every request before them, and wakes their threads.
+     * A granted upgrade is merged into the request it upgrades. Must be
+     * called under the head's stripe monitor.
+     */
+    private static void grantWaiters(LockHead head) {
+        for (int i = 0; i < head.queue.size(); i++) {
+            Request r = head.queue.get(i);
+            if (r.granted) {
+                continue;
+            }
+            for (int j = 0; j < i; j++) {
+                if (r.waitsFor(head.queue.get(j))) {
+                    return;
+                }
+            }
+            if (r.upgrades != null) {
+                r.upgrades.mode = r.mode;
+                head.queue.remove(i--);
+            }
+            synchronized (r) {
+                r.granted = true;
+                r.notifyAll();
+            }
+        }
+    }
+
+    /** Withdraws a request that is still waiting; a granted one is kept. */
+    private void cancel(Request req, Object o) {
+        Stripe stripe = stripeFor(o);
+        synchronized (stripe) {
+            if (!req.granted) {
+                remove(stripe, req, o);
+            }
+        }
+    }
+
+    /** Removes req from o's queue and grants what it was blocking. */
+    private void remove(Stripe stripe, Request req, Object o) {
+        LockHead head = stripe.heads.get(o);
+        if (head == null || !head.queue.remove(req)) {
+            return;
+        }
+        synchronized (req) {
+            req.cancelled = true;
+            req.notifyAll();
+        }
+        Set<Object> objects = lockedBy.get(req.tid);
+        if (objects != null && head.find(req.tid, true) == null && head.find(req.tid, false) == null) {
+            objects.remove(o);
+        }
+        if (head.queue.isEmpty()) {
+            stripe.heads.remove(o);
+        } else {
+            grantWaiters(head);
+        }
+    }
+
+    /**
+     * Counts tid's thread as waiting, starting the deadlock detector if it
+     * is not running.
+     */
+    private void startWaiting() {
+        synchronized (detectorLock) {
+            waiters++;
+            if (detector == null) {
+                detector = new Thread(this::detectDeadlocks, "LockManager-deadlock");
+                detector.setDaemon(true);
+                detector.start();
+            }
+        }
+    }
+
+    private void stopWaiting() {
+        synchronized (detectorLock) {
+            waiters--;
+        }
+    }
+
+    /**
+     * Body of the deadlock detector thread. Every DETECT_INTERVAL_MS while
+     * some thread is waiting, builds the wait-for graph from the lock
+     * queues, and while it has cycles aborts the youngest transaction of
+     * each. The thread exits once no thread is waiting.
+     */
+    private void detectDeadlocks() {
+        while (true) {
+            synchronized (detectorLock) {
+                try {
+                    detectorLock.wait(DETECT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    detector = null;
+                    return;
                 }
-                if (wOwner.equals(tid)) {
-                    // already have
-                    return true;
+                if (waiters == 0) {
+                    detector = null;
+                    return;
                 }
-                // someone holds wLock, wait until it release
-                waitForGraph.addVertex(tid);
-                waitForGraph.addVertex(wOwner);
-                waitForGraph.addEdge(tid, wOwner);
-                if (waitForGraph.cycleDetect(tid)) {
-                    // deadlock
-                    waitForGraph.removeToEdge(tid);
-                    throw new TransactionAbortedException();
+            }
+            WaitForGraph graph = waitForGraph();
+            List<Set<TransactionId>> cycles = graph.findCycles();
+            while (!cycles.isEmpty()) {
+                for (Set<TransactionId> cycle : cycles) {
+                    TransactionId victim = Collections.max(cycle, Comparator.comparingLong(TransactionId::getId));
+                    abortWaits(victim);
+                    graph.removeVertex(victim);
                 }
-                wait(50);
-            }
-            case READ_WRITE -> {
-                Set<TransactionId> rOwner = rLockMap.getOrDefault(o, new HashSet<>());
-
-                if (rOwner.isEmpty() || (rOwner.size() == 1 && rOwner.contains(tid))) {
-                    // only itself has read lock, then get
-                    TransactionId wOwner = wLockMap.getOrDefault(o, null);
-                    if (wOwner == null) {
-                        HashSet<TransactionId> owner = new HashSet<>();
-                        owner.add(tid);
-                        // get rLock first
-                        rLockMap.put(o, owner);
-                        // get wLock
-                        wLockMap.put(o, tid);
-                        System.out.println(tid + " acquire " + o + " write lock success");
-                        return true;
-                    }
-                    if (wOwner.equals(tid)) {
-                        return true;
-                    } else {
-                        // impossible to get here
-                        throw new TransactionAbortedException();
+                cycles = graph.findCycles();
+            }
+        }
+    }
+
+    /**
+     * Builds the wait-for graph: an edge runs from each waiting request's
+     * transaction to every other transaction holding or queued ahead of it
+     * for an incompatible lock. Each stripe is read under its monitor in
+     * turn.
+     */
+    private WaitForGraph waitForGraph() {
+        WaitForGraph graph = new WaitForGraph();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (LockHead head : stripe.heads.values()) {
+                    for (int i = 0; i < head.queue.size(); i++) {
+                        Request req = head.queue.get(i);
+                        if (req.granted) {
+                            continue;
+                        }
+                        for (int j = 0; j < i; j++) {
+                            Request r = head.queue.get(j);
+                            if (req.waitsFor(r)) {
+                                graph.addEdge(req.tid, r.tid);
+                            }
+                        }
                     }
                 }
+            }
+        }
+        return graph;
+    }
 
-                if (rOwner.size() > 1) {
-                    // someone else holds read lock, throw exception to avoid deadlock
-                    System.out.println(tid + " acquire " + o + " read lock failed");
-                    throw new TransactionAbortedException();
+    /**
+     * Withdraws tid's waiting requests, upgrades included, so their threads
+     * throw TransactionAbortedException. The locks tid holds are kept until
+     * it completes.
+     */
+    private void abortWaits(TransactionId tid) {
+        Set<Object> objects = lockedBy.get(tid);
+        if (objects == null) {
+            return;
+        }
+        for (Object o : objects) {
+            Stripe stripe = stripeFor(o);
+            synchronized (stripe) {
+                LockHead head = stripe.heads.get(o);
+                Request req = head == null ? null : head.find(tid, false);
+                if (req != null) {
+                    remove(stripe, req, o);
                 }
+            }
+        }
+    }
 
-                // someone holds write lock, then wait
-                Iterator<TransactionId> it = rOwner.iterator();
-                while (it.hasNext()) {
-                    waitForGraph.addVertex(it.next());
-                    waitForGraph.addEdge(tid, it.next());
-                }
-                if (waitForGraph.cycleDetect(tid)) {
-                    // deadlock
-                    waitForGraph.removeToEdge(tid);
-                    throw new TransactionAbortedException();
-                }
-                wait(10);
+    /**
+     * Releases tid's lock on o and withdraws any request of it still
+     * waiting, and grants the requests they were blocking.
+     */
+    public void releaseLock(TransactionId tid, Object o) {
+        Stripe stripe = stripeFor(o);
+        synchronized (stripe) {
+            LockHead head = stripe.heads.get(o);
+            if (head == null) {
+                return;
+            }
+            // withdraw a pending upgrade first, so it is not granted on
+            // top of the lock being released
+            Request waiting = head.find(tid, false);
+            if (waiting != null) {
+                remove(stripe, waiting, o);
+            }
+            Request held = head.find(tid, true);
+            if (held != null) {
+                remove(stripe, held, o);
             }
         }
-        return false;
     }
 
-    public synchronized void releaseLock(TransactionId tid, Object o) {
-        // release rLock
-        rLockMap.get(o).remove(tid);
-        TransactionId wOwner = wLockMap.get(o);
-        if (wOwner == null || !wOwner.equals(tid)) {
-            return;
+    /** Returns the mode of the lock tid holds on o, or null if it holds none. */
+    public LockMode heldMode(TransactionId tid, Object o) {
+        Stripe stripe = stripeFor(o);
+        synchronized (stripe) {
+            LockHead head = stripe.heads.get(o);
+            Request held = head == null ? null : head.find(tid, true);
+            return held == null ? null : held.mode;
         }
-        // release wLock
-        wLockMap.remove(o);
-        waitForGraph.removeToEdge(tid);
-        this.notifyAll();
     }
 
-    public synchronized boolean isHoldsLock(TransactionId tid, Object o) {
-        Set<TransactionId> rOwner = rLockMap.getOrDefault(o, null);
-        return rOwner != null && rOwner.contains(tid);
+    public boolean isHoldsLock(TransactionId tid, Object o) {
+        Stripe stripe = stripeFor(o);
+        synchronized (stripe) {
+            LockHead head = stripe.heads.get(o);
+            return head != null && head.find(tid, true) != null;
+        }
     }
 
-    public synchronized void transactionComplete(TransactionId tid) {
-        for (Object o : rLockMap.keySet()) {
-            releaseLock(tid, o);
+    /**
+     * Releases every lock tid holds and withdraws every request it is
+     * waiting on; threads of tid still waiting are aborted.
+     */
+    public void transactionComplete(TransactionId tid) {
+        Set<Object> objects = lockedBy.remove(tid);
+        if (objects == null) {
+            return;
         }
-        for (Object o : wLockMap.keySet()) {
+        for (Object o : objects) {
             releaseLock(tid, o);
         }
     }
@@ -0,0 +1,60 @@
+package com.simpledb.transaction;
+
+import com.simpledb.common.Permissions;
+
+/**
+ * The modes of a lock in the LockManager. S and X are the shared and
+ * exclusive locks that READ_ONLY and READ_WRITE pages take. The intention
+ * modes are taken on a container, e.g. a table, before locking objects in
+ * it: IS before shared locks, IX before exclusive ones, and SIX, which
+ * shares the whole container, before exclusive locks in it.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /** Returns whether two transactions may hold this mode and other at once. */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** Returns whether holding this mode grants everything other does. */
+    public boolean covers(LockMode other) {
+        if (this == other || this == X) {
+            return true;
+        }
+        switch (this) {
+            case SIX:
+                return other != X;
+            case IX:
+            case S:
+                return other == IS;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns the weakest mode that covers both this mode and other. */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // IX and S
+        return SIX;
+    }
+}
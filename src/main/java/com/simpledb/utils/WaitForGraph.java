@@ -4,50 +4,96 @@ import com.simpledb.transaction.TransactionId;
 
 import java.util.*;
 
+/**
+ * WaitForGraph is a directed graph with an edge from each waiting
+ * transaction to every transaction it waits for. Its cycles are the
+ * deadlocks among those transactions.
+ */
 public class WaitForGraph {
 
-    Map<TransactionId, List<TransactionId>> adjList;
+    Map<TransactionId, Set<TransactionId>> adjList;
 
     public WaitForGraph() {
         adjList = new HashMap<>();
     }
 
     public void addVertex(TransactionId vertex) {
-        adjList.putIfAbsent(vertex, new LinkedList<>());
+        adjList.putIfAbsent(vertex, new HashSet<>());
     }
 
+    /** Removes a vertex together with its edges in both directions. */
     public void removeVertex(TransactionId vertex) {
         adjList.remove(vertex);
+        for (Set<TransactionId> adj : adjList.values()) {
+            adj.remove(vertex);
+        }
     }
 
     public void addEdge(TransactionId from, TransactionId to) {
+        addVertex(from);
+        addVertex(to);
         adjList.get(from).add(to);
     }
 
     public void removeEdge(TransactionId from, TransactionId to) {
-        adjList.get(from).remove(to);
+        Set<TransactionId> adj = adjList.get(from);
+        if (adj != null) {
+            adj.remove(to);
+        }
     }
 
-    public void removeToEdge(TransactionId from) {
-        adjList.put(from, new LinkedList<>());
+    /**
+     * Finds the strongly connected components of the graph that contain a
+     * cycle, with Tarjan's algorithm. Every cycle lies within one of them,
+     * and each of them has at least one; removing a vertex from each and
+     * searching again eventually breaks them all.
+     *
+     * @return the vertices of each component holding a cycle
+     */
+    public List<Set<TransactionId>> findCycles() {
+        Tarjan tarjan = new Tarjan();
+        for (TransactionId v : adjList.keySet()) {
+            if (!tarjan.index.containsKey(v)) {
+                tarjan.visit(v);
+            }
+        }
+        return tarjan.cycles;
     }
 
-    public boolean cycleDetect(TransactionId vertex) {
-        // vertex does not exits
-        if (adjList.getOrDefault(vertex, null) == null) return false;
-        List<TransactionId> result = new ArrayList<>();
-        result.add(vertex);
-        return dfs(vertex, result);
-    }
+    private final class Tarjan {
+        final Map<TransactionId, Integer> index = new HashMap<>();
+        final Map<TransactionId, Integer> lowLink = new HashMap<>();
+        final Deque<TransactionId> stack = new ArrayDeque<>();
+        final Set<TransactionId> onStack = new HashSet<>();
+        final List<Set<TransactionId>> cycles = new ArrayList<>();
 
-    private boolean dfs(TransactionId vertex, List<TransactionId> result) {
-        List<TransactionId> adj = adjList.get(vertex);
-        for (TransactionId tid : adj) {
-            if (result.contains(tid)) return true;
-            result.add(tid);
-            return dfs(tid, result);
+        void visit(TransactionId v) {
+            index.put(v, index.size());
+            lowLink.put(v, index.get(v));
+            stack.push(v);
+            onStack.add(v);
+            for (TransactionId w : adjList.get(v)) {
+                if (!index.containsKey(w)) {
+                    visit(w);
+                    lowLink.put(v, Math.min(lowLink.get(v), lowLink.get(w)));
+                } else if (onStack.contains(w)) {
+                    lowLink.put(v, Math.min(lowLink.get(v), index.get(w)));
+                }
+            }
+            if (!lowLink.get(v).equals(index.get(v))) {
+                return;
+            }
+            Set<TransactionId> component = new HashSet<>();
+            TransactionId w;
+            do {
+                w = stack.pop();
+                onStack.remove(w);
+                component.add(w);
+            } while (!w.equals(v));
+            if (component.size() > 1 || adjList.get(v).contains(v)) {
+                cycles.add(component);
+            }
         }
-        return false;
     }
 
 }
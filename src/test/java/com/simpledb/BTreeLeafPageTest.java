@@ -19,6 +19,9 @@ import com.simpledb.systemtest.SystemTestUtil;
 //import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -347,6 +350,60 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.getPageData(): an image built while the
+	 * page is being changed is not cached past the change
+	 */
+	@Test public void imageBuiltDuringChange() throws Exception {
+		final CountDownLatch built = new CountDownLatch(1);
+		final CountDownLatch resume = new CountDownLatch(1);
+		final AtomicBoolean pause = new AtomicBoolean();
+		final BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0) {
+			@Override
+			protected byte[] serializePage() {
+				byte[] image = super.serializePage();
+				// the constructor builds the before-image
+				if (!pause.getAndSet(false)) {
+					return image;
+				}
+				built.countDown();
+				try {
+					resume.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return image;
+			}
+		};
+		final Tuple t = new Tuple(Utility.getTupleDesc(2));
+		t.setField(0, new IntField(1));
+		t.setField(1, new IntField(2));
+		// drop the image the constructor cached
+		page.setLeftSiblingId(null);
+		pause.set(true);
+		Thread reader = new Thread(page::getPageData);
+		Thread writer = new Thread(() -> {
+			try {
+				page.insertTuple(t);
+			} catch (DbException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		try {
+			reader.start();
+			assertTrue(built.await(10, TimeUnit.SECONDS));
+			writer.start();
+			// give the insert time to run, or to block on the image
+			writer.join(100);
+		} finally {
+			resume.countDown();
+			reader.join();
+			writer.join();
+		}
+		BTreeLeafPage image = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(page.getNumEmptySlots(), image.getNumEmptySlots());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
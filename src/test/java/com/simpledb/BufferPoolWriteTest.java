@@ -4,8 +4,10 @@ import com.simpledb.common.Database;
 import com.simpledb.common.DbException;
 import com.simpledb.common.Permissions;
 import com.simpledb.common.Utility;
+import com.simpledb.policy.LRUPolicy;
 import com.simpledb.storage.*;
 import com.simpledb.systemtest.SystemTestUtil;
+import com.simpledb.transaction.TransactionAbortedException;
 import com.simpledb.transaction.TransactionId;
 import junit.framework.JUnit4TestAdapter;
 import org.junit.After;
@@ -17,9 +19,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -140,6 +149,242 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for NO-FORCE commits: the commit only logs the page, and the
+     * page cleaner writes it back
+     */
+    @Test public void noForceCommit() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        pool.transactionComplete(tid, true);
+
+        pool.setNoForce(true);
+        try {
+            TransactionId tid2 = new TransactionId();
+            pool.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(2, 2));
+            pool.transactionComplete(tid2, true);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.numUnflushedPages() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, pool.numUnflushedPages());
+            assertTrue(pool.getDirtyPageTable().isEmpty());
+            HeapPage onDisk = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+            assertEquals(502, onDisk.getNumEmptySlots());
+        } finally {
+            pool.setNoForce(false);
+        }
+    }
+
+    /**
+     * Unit test for the page cleaner under STEAL: a page an active
+     * transaction dirtied a while ago is written through the log, and keeps
+     * its place in the dirty page table until the transaction completes
+     */
+    @Test public void cleanerWritesOldDirtyPages() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        Database.getLogFile().logXactionBegin(tid);
+        pool.setNoForce(true);
+        pool.setSteal(true);
+        try {
+            pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+            Page page = pool.getPage(tid, pid, Permissions.READ_ONLY);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (page.isDirty() != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNull(page.isDirty());
+            HeapPage onDisk = (HeapPage) empty.readPage(pid);
+            assertEquals(503, onDisk.getNumEmptySlots());
+            assertTrue(Database.getLogFile().getFlushedLsn() > page.getLSN());
+            assertTrue(pool.getDirtyPageTable().containsKey(pid));
+        } finally {
+            pool.setSteal(false);
+            pool.setNoForce(false);
+        }
+    }
+
+    /**
+     * Unit test for page LSNs: writing a dirty page stamps it with the LSN
+     * of its update record, and the log is durable past it
+     */
+    @Test public void flushSetsPageLsn() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        Page page = pool.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(LogFile.NO_LSN, page.getLSN());
+
+        pool.transactionComplete(tid, true);
+        assertTrue(page.getLSN() != LogFile.NO_LSN);
+        assertTrue(Database.getLogFile().getFlushedLsn() > page.getLSN());
+    }
+
+    /**
+     * Unit test for STEAL: a transaction dirties more pages than the pool
+     * holds, and aborting it restores the stolen pages on disk
+     */
+    @Test public void stealAndAbort() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*6, null, null);
+        List<byte[]> original = new ArrayList<>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            original.add(hf.readPage(new HeapPageId(hf.getId(), i)).getPageData());
+        }
+
+        BufferPool pool = Database.resetBufferPool(3);
+        pool.setSteal(true);
+        Database.getLogFile().logXactionBegin(tid);
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            pool.deleteTuple(tid, ((HeapPage) hf.readPage(pid)).iterator().next());
+        }
+        // the first page was stolen to make room for the others
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        assertEquals(1, ((HeapPage) hf.readPage(first)).getNumEmptySlots());
+
+        Database.getLogFile().logAbort(tid);
+        pool.transactionComplete(tid, false);
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertArrayEquals(original.get(i), hf.readPage(pid).getPageData());
+            assertArrayEquals(original.get(i), pool.getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+        }
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Unit test for STEAL: a page is not stolen while its dirtier is in the
+     * middle of changing it
+     */
+    @Test public void noStealDuringUpdate() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*2, null, null);
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        Iterator<Tuple> tuples = ((HeapPage) hf.readPage(first)).iterator();
+        final Tuple pending = tuples.next();
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        HeapFile pausing = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+                ArrayList<Page> pages = super.deleteTuple(tid, t);
+                if (t != pending) {
+                    return pages;
+                }
+                paused.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted");
+                }
+                return pages;
+            }
+        };
+        Database.getCatalog().addTable(pausing);
+
+        BufferPool pool = Database.resetBufferPool(1);
+        pool.setSteal(true);
+        pool.deleteTuple(tid, tuples.next());
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread updater = new Thread(() -> {
+            try {
+                pool.deleteTuple(tid, pending);
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        updater.start();
+        paused.await();
+
+        // the only page is dirty and its dirtier is mid-update
+        TransactionId reader = new TransactionId();
+        try {
+            pool.getPage(reader, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException expected) {
+        } finally {
+            resume.countDown();
+        }
+        assertEquals(0, ((HeapPage) hf.readPage(first)).getNumEmptySlots());
+
+        updater.join();
+        assertEquals(new ArrayList<>(), errors);
+        pool.transactionComplete(reader);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Unit test for a BufferPool keeping page images in an off-heap arena
+     */
+    @Test public void offHeapFrames() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*6, null, null);
+        BufferPool pool = new BufferPool(4, 1, LRUPolicy::new, true);
+        FrameArena arena = pool.getFrameArena();
+        assertEquals(4, arena.numFrames());
+
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) pool.getPage(tid, first, Permissions.READ_WRITE);
+        byte[] onDisk = hf.readPage(first).getPageData();
+        assertArrayEquals(onDisk, page.getPageData());
+        assertEquals(3, arena.numFreeFrames());
+
+        // modifying a framed page keeps its before-image
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        assertArrayEquals(onDisk, page.getBeforeImage().getPageData());
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+
+        // reading the other pages evicts page 0; the evicted page object
+        // keeps its contents after its frame is reused
+        byte[] modified = page.getPageData();
+        for (int i = 1; i < hf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertArrayEquals(hf.readPage(pid).getPageData(), pool.getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+        }
+        assertEquals(0, arena.numFreeFrames());
+        assertArrayEquals(modified, page.getPageData());
+
+        pool.discardPage(new HeapPageId(hf.getId(), hf.numPages() - 1));
+        assertEquals(1, arena.numFreeFrames());
+        pool.transactionComplete(tid, false);
+    }
+
+    /**
+     * Unit test for a framed page read by one thread while another evicts it
+     * and hands its frame to other pages: the reader never sees their bytes
+     */
+    @Test public void readWhileFrameReused() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*4, null, null);
+        BufferPool pool = new BufferPool(2, 1, LRUPolicy::new, true);
+        final HeapPageId first = new HeapPageId(hf.getId(), 0);
+        final HeapPage expected = (HeapPage) hf.readPage(first);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread reader = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2000; i++) {
+                    HeapPage page = (HeapPage) pool.getPage(tid, first, Permissions.READ_ONLY);
+                    for (int slot = 0; slot < 504; slot++) {
+                        assertTrue(page.isSlotUsed(slot));
+                        assertEquals(expected.getField(slot, 1), page.getField(slot, 1));
+                    }
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        reader.start();
+        while (reader.isAlive()) {
+            for (int i = 0; i < hf.numPages(); i++) {
+                pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            }
+        }
+        pool.transactionComplete(tid);
+        assertEquals(new ArrayList<>(), errors);
+    }
+
     /**
      * JUnit suite target
      */
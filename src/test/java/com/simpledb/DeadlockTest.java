@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import com.simpledb.common.Database;
 import com.simpledb.common.Permissions;
@@ -219,6 +222,26 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * t1 acquires p0.write; t2 acquires p1.write; t1 attempts p1.write; t2
+   * attempts p0.write. The deadlock detector should abort t2, the younger
+   * transaction, so that t1 gets its lock.
+   */
+  @Test public void testYoungestAborted() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2Write0.join(10 * WAIT_INTERVAL);
+    lg1Write1.join(10 * WAIT_INTERVAL);
+
+    assertNotNull(lg2Write0.getError());
+    assertFalse(lg2Write0.acquired());
+    assertNull(lg1Write1.getError());
+    assertTrue(lg1Write1.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,261 @@
+package com.simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import com.simpledb.common.Database;
+import com.simpledb.common.Permissions;
+import com.simpledb.policy.ClockPolicy;
+import com.simpledb.policy.EvictPolicy;
+import com.simpledb.policy.FIFOPolicy;
+import com.simpledb.policy.LRUPolicy;
+import com.simpledb.policy.TwoQueuePolicy;
+import com.simpledb.storage.BufferPool;
+import com.simpledb.storage.HeapFile;
+import com.simpledb.storage.HeapPageId;
+import com.simpledb.storage.Page;
+import com.simpledb.storage.PageId;
+import com.simpledb.systemtest.SimpleDbTestBase;
+import com.simpledb.systemtest.SystemTestUtil;
+import com.simpledb.transaction.TransactionId;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+public class EvictPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pageNo) {
+        return new HeapPageId(-1, pageNo);
+    }
+
+    /**
+     * Unit test for LRUPolicy.touch(): a touched page becomes most recent
+     */
+    @Test public void lruTouch() {
+        EvictPolicy lru = new LRUPolicy(3);
+        lru.put(pid(0));
+        lru.put(pid(1));
+        lru.put(pid(2));
+        lru.touch(pid(0));
+        // re-putting a cached page must not duplicate it
+        lru.put(pid(1));
+        assertEquals(pid(2), lru.pop());
+        assertEquals(pid(0), lru.pop());
+        assertEquals(pid(1), lru.pop());
+    }
+
+    /**
+     * Unit test for ClockPolicy: referenced pages get a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictPolicy clock = new ClockPolicy(3);
+        clock.put(pid(0));
+        clock.put(pid(1));
+        clock.put(pid(2));
+        clock.touch(pid(0));
+        assertEquals(pid(1), clock.pop());
+        assertEquals(pid(2), clock.pop());
+        assertEquals(pid(0), clock.pop());
+        assertNull(clock.pop());
+    }
+
+    /**
+     * Unit test for ClockPolicy.put() on a full clock and ClockPolicy.remove()
+     */
+    @Test public void clockFullAndRemove() {
+        EvictPolicy clock = new ClockPolicy(2);
+        clock.put(pid(0));
+        clock.put(pid(1));
+        // evicts page 0 to make room
+        clock.put(pid(2));
+        clock.remove(pid(1));
+        // touching a page that is not in the clock is a no-op
+        clock.touch(pid(1));
+        // page 3 reuses the freed frame, which the hand reaches first
+        clock.put(pid(3));
+        assertEquals(pid(3), clock.pop());
+        assertEquals(pid(2), clock.pop());
+        assertNull(clock.pop());
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: probationary pages are evicted first, and
+     * a page read again after eviction is protected
+     */
+    @Test public void twoQueuePromotion() {
+        EvictPolicy twoQ = new TwoQueuePolicy(4);
+        twoQ.put(pid(0));
+        twoQ.put(pid(1));
+        assertEquals(pid(0), twoQ.pop());
+        // page 0 comes back while its ghost is remembered
+        twoQ.put(pid(0));
+        twoQ.put(pid(2));
+        twoQ.put(pid(3));
+        // page 2 is used again while probationary
+        twoQ.touch(pid(2));
+        // probationary pages go first, oldest first, keeping at least one
+        assertEquals(pid(1), twoQ.pop());
+        // then protected pages, least recently used first
+        assertEquals(pid(0), twoQ.pop());
+        assertEquals(pid(2), twoQ.pop());
+        assertEquals(pid(3), twoQ.pop());
+        assertNull(twoQ.pop());
+    }
+
+    /**
+     * Unit test for EvictPolicy.peek() and EvictPolicy.skip(): a page passed
+     * over keeps its place, and is a candidate again after the next pop
+     */
+    @Test public void skipKeepsOrder() {
+        EvictPolicy lru = new LRUPolicy(3);
+        lru.put(pid(0));
+        lru.put(pid(1));
+        lru.put(pid(2));
+        assertEquals(pid(0), lru.peek());
+        lru.skip(pid(0));
+        assertEquals(pid(1), lru.pop());
+        assertEquals(pid(0), lru.peek());
+
+        // a skipped probationary page is neither promoted nor remembered as
+        // a ghost
+        EvictPolicy twoQ = new TwoQueuePolicy(4);
+        twoQ.put(pid(0));
+        twoQ.put(pid(1));
+        twoQ.put(pid(2));
+        twoQ.skip(twoQ.peek());
+        assertEquals(pid(1), twoQ.pop());
+        assertEquals(pid(0), twoQ.pop());
+
+        // once every page is skipped, peek() reports none and starts over
+        EvictPolicy clock = new ClockPolicy(3);
+        clock.put(pid(0));
+        clock.put(pid(1));
+        clock.put(pid(2));
+        clock.touch(pid(0));
+        for (int pageNo : new int[] {1, 2, 0}) {
+            assertEquals(pid(pageNo), clock.peek());
+            clock.skip(pid(pageNo));
+        }
+        assertNull(clock.peek());
+        assertEquals(pid(1), clock.pop());
+    }
+
+    /**
+     * Replays a page reference string against a cache of the given capacity
+     * managed by the policy, the way BufferPool drives it.
+     *
+     * @return the hit rate
+     */
+    private static double hitRate(IntFunction<EvictPolicy> factory, int capacity, int[] refs) {
+        EvictPolicy policy = factory.apply(capacity);
+        Set<PageId> cached = new HashSet<>();
+        int hits = 0;
+        for (int ref : refs) {
+            PageId pid = pid(ref);
+            if (cached.contains(pid)) {
+                policy.touch(pid);
+                hits++;
+                continue;
+            }
+            if (cached.size() >= capacity) {
+                assertTrue(cached.remove(policy.pop()));
+            }
+            policy.put(pid);
+            cached.add(pid);
+        }
+        return (double) hits / refs.length;
+    }
+
+    /**
+     * Benchmark: point lookups on a hot set of 60% of the cache (e.g. B+ tree
+     * internal pages), interrupted by full scans of a table ten times the
+     * size of the cache. The 2Q policy must keep the hot set through the
+     * scans, which the others evict.
+     */
+    @Test public void scanResistanceBenchmark() {
+        final int CAPACITY = 100, HOT_PAGES = 60, SCAN_PAGES = 1000;
+        final int ROUNDS = 20, LOOKUPS = 500;
+        Random rand = new Random(42);
+        int[] refs = new int[ROUNDS * (LOOKUPS + SCAN_PAGES)];
+        int n = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < LOOKUPS; i++) {
+                refs[n++] = rand.nextInt(HOT_PAGES);
+            }
+            for (int i = 0; i < SCAN_PAGES; i++) {
+                refs[n++] = HOT_PAGES + i;
+            }
+        }
+
+        double lru = hitRate(LRUPolicy::new, CAPACITY, refs);
+        double fifo = hitRate(FIFOPolicy::new, CAPACITY, refs);
+        double clock = hitRate(ClockPolicy::new, CAPACITY, refs);
+        double twoQ = hitRate(TwoQueuePolicy::new, CAPACITY, refs);
+        // the best possible: scans always miss, lookups only miss once
+        double ideal = (double) (ROUNDS * LOOKUPS - HOT_PAGES) / refs.length;
+        assertTrue(twoQ > lru);
+        assertTrue(twoQ > fifo);
+        assertTrue(twoQ > clock);
+        assertTrue(twoQ > 0.95 * ideal);
+    }
+
+    /**
+     * A BufferPool evicting with ClockPolicy serves a table larger than itself
+     */
+    @Test public void bufferPoolWithClock() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992 * 12, null, null);
+        BufferPool pool = new BufferPool(8, ClockPolicy::new);
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < f.numPages(); i++) {
+                HeapPageId pid = new HeapPageId(f.getId(), i);
+                assertEquals(pid, pool.getPage(tid, pid, Permissions.READ_ONLY).getId());
+            }
+        }
+        pool.transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * A sharded BufferPool evicting with TwoQueuePolicy keeps a hot set
+     * that was used twice through a scan of a table twice its size: each
+     * shard's policy is sized to the shard, so the scan's pages are evicted
+     * from the probationary queue
+     */
+    @Test public void bufferPoolScanResistance() throws Exception {
+        final int POOL_PAGES = 128, SHARDS = 8, HOT_PAGES = 16;
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(1, 992 * HOT_PAGES, null, null);
+        HeapFile cold = SystemTestUtil.createRandomHeapFile(1, 992 * 2 * POOL_PAGES, null, null);
+        BufferPool pool = new BufferPool(POOL_PAGES, SHARDS, TwoQueuePolicy::new);
+        TransactionId tid = new TransactionId();
+        try {
+            Page[] hotPages = new Page[HOT_PAGES];
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < HOT_PAGES; i++) {
+                    hotPages[i] = pool.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+                }
+            }
+            for (int i = 0; i < cold.numPages(); i++) {
+                pool.getPage(tid, new HeapPageId(cold.getId(), i), Permissions.READ_ONLY);
+            }
+            // a page that was evicted is read again into a new Page
+            for (int i = 0; i < HOT_PAGES; i++) {
+                assertSame(hotPages[i], pool.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY));
+            }
+        } finally {
+            pool.transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictPolicyTest.class);
+    }
+}
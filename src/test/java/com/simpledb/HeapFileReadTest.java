@@ -66,6 +66,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         // assertEquals(1, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a file that does not exist:
+     * reading must not create it, and closing leaves the file reopenable
+     */
+    @Test
+    public void readPageMissingFile() throws Exception {
+        java.io.File f = java.io.File.createTempFile("missing", ".dat");
+        assertTrue(f.delete());
+        HeapFile missing = new HeapFile(f, td);
+        Database.getCatalog().addTable(missing);
+        missing.readPage(new HeapPageId(missing.getId(), 0));
+        assertFalse(f.exists());
+        assertEquals(0, missing.numPages());
+
+        hf.close();
+        assertEquals(1, hf.numPages());
+        assertEquals(484, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+    }
+
     /**
      * Unit test for HeapFile.readPage()
      */
@@ -81,6 +100,29 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() through a memory-mapped channel
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+
+        hf.setMemoryMapped(true);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertArrayEquals(expected, page.getPageData());
+
+        // writes through the channel are visible to the mapping, including
+        // pages appended past the originally mapped region
+        HeapPage fresh = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        fresh.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(fresh);
+        assertEquals(2, hf.numPages());
+        HeapPage reread = (HeapPage) hf.readPage(fresh.getId());
+        assertArrayEquals(fresh.getPageData(), reread.getPageData());
+        hf.setMemoryMapped(false);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
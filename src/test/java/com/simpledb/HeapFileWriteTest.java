@@ -10,7 +10,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -51,6 +54,32 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() reusing space freed by a delete
+     * through the free-space map
+     */
+    @Test public void addTupleAfterDelete() throws Exception {
+        // fill two pages
+        Tuple first = null;
+        for (int i = 0; i < 2 * 504; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (first == null) first = t;
+        }
+        assertEquals(2, empty.numPages());
+
+        // free a slot on the first page: the next insert goes there
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, empty.numPages());
+
+        // all pages are full again
+        empty.insertTuple(tid, Utility.getHeapTuple(-2, 2));
+        assertEquals(3, empty.numPages());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -91,6 +120,78 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() and HeapFile.insertTuples()
+     * appending pages concurrently: each must get pages of its own, so no
+     * tuple is overwritten.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        final int BATCH = 600;
+        Thread[] threads = new Thread[4];
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int n = 0; n < threads.length; n++) {
+            final boolean single = n == 0;
+            threads[n] = new Thread(() -> {
+                TransactionId t = new TransactionId();
+                try {
+                    if (single) {
+                        Database.getBufferPool().insertTuple(t, empty.getId(), Utility.getHeapTuple(-1, 2));
+                    } else {
+                        List<Tuple> batch = new ArrayList<>();
+                        for (int i = 0; i < BATCH; i++) {
+                            batch.add(Utility.getHeapTuple(i, 2));
+                        }
+                        Database.getBufferPool().insertTuples(t, empty.getId(), batch);
+                    }
+                    Database.getBufferPool().transactionComplete(t);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(1 + (threads.length - 1) * BATCH, count);
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuples(): an abort that only goes through
+     * the buffer pool removes the tuples of the appended pages.
+     */
+    @Test public void abortedAppend() throws Exception {
+        TransactionId t = new TransactionId();
+        List<Tuple> batch = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().insertTuples(t, empty.getId(), batch);
+        Database.getBufferPool().transactionComplete(t, false);
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(0, count);
+    }
+
     /**
      * JUnit suite target
      */
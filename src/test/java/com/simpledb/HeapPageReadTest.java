@@ -102,6 +102,25 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getField() and HeapPage.getTuple()
+     */
+    @Test public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) page.getField(row, 1)).getValue());
+        }
+
+        Tuple tup = page.getTuple(3);
+        assertEquals(new RecordId(pid, 3), tup.getRecordId());
+        assertEquals(EXAMPLE_VALUES[3][0], ((IntField) tup.getField(0)).getValue());
+        // materialized tuples are reused
+        assertTrue(tup == page.getTuple(3));
+        // a page that was only partially materialized serializes unchanged
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
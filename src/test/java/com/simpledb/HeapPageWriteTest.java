@@ -99,6 +99,34 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         page.deleteTuple(Utility.getHeapTuple(2, 2));
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() and HeapPage.getBeforeImage() after
+     * in-place updates
+     */
+    @Test public void pageDataAfterUpdate() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, original);
+
+        Tuple added = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(added);
+        Tuple removed = page.iterator().next();
+        page.deleteTuple(removed);
+
+        // the image reflects both updates and round-trips through the constructor
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        assertFalse(copy.isSlotUsed(removed.getRecordId().getTupleNumber()));
+        assertEquals(added.getField(1), copy.getField(added.getRecordId().getTupleNumber(), 1));
+
+        // neither the caller's array nor the before-image saw the updates
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, original);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple()
      */
@@ -0,0 +1,62 @@
+package com.simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import com.simpledb.common.Permissions;
+import com.simpledb.transaction.LockMode;
+
+import static com.simpledb.transaction.LockMode.*;
+import static org.junit.Assert.*;
+
+public class LockModeTest {
+
+    /**
+     * Unit test for LockMode.isCompatible(): the standard matrix, which is
+     * symmetric
+     */
+    @Test public void compatibility() {
+        assertTrue(IS.isCompatible(SIX));
+        assertTrue(IX.isCompatible(IX));
+        assertTrue(S.isCompatible(S));
+        assertFalse(IX.isCompatible(S));
+        assertFalse(SIX.isCompatible(SIX));
+        assertFalse(X.isCompatible(IS));
+        for (LockMode a : LockMode.values()) {
+            for (LockMode b : LockMode.values()) {
+                assertEquals(a.isCompatible(b), b.isCompatible(a));
+            }
+        }
+    }
+
+    /**
+     * Unit test for LockMode.covers() and LockMode.combine()
+     */
+    @Test public void combine() {
+        assertTrue(SIX.covers(S));
+        assertTrue(SIX.covers(IX));
+        assertFalse(S.covers(IX));
+        assertEquals(SIX, IX.combine(S));
+        assertEquals(X, S.combine(X));
+        assertEquals(S, IS.combine(S));
+        for (LockMode a : LockMode.values()) {
+            for (LockMode b : LockMode.values()) {
+                LockMode c = a.combine(b);
+                assertTrue(c.covers(a) && c.covers(b));
+            }
+        }
+    }
+
+    @Test public void permissions() {
+        assertEquals(S, LockMode.of(Permissions.READ_ONLY));
+        assertEquals(X, LockMode.of(Permissions.READ_WRITE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockModeTest.class);
+    }
+}
@@ -3,6 +3,8 @@ package com.simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 import com.simpledb.common.Database;
@@ -16,6 +18,7 @@ import com.simpledb.transaction.TransactionId;
 public class LockingTest extends TestUtil.CreateHeapFile {
   private PageId p0;
     private PageId p1;
+    private PageId p2;
     private TransactionId tid1, tid2;
 
   /** Time to wait before checking the state of lock contention, in ms */
@@ -45,7 +48,7 @@ public class LockingTest extends TestUtil.CreateHeapFile {
 
     this.p0 = new HeapPageId(empty.getId(), 0);
     this.p1 = new HeapPageId(empty.getId(), 1);
-      PageId p2 = new HeapPageId(empty.getId(), 2);
+      this.p2 = new HeapPageId(empty.getId(), 2);
     this.tid1 = new TransactionId();
     this.tid2 = new TransactionId();
 
@@ -193,6 +196,96 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A transaction blocked on a page should get its lock as soon as the
+   * holder releases it.
+   */
+  @Test public void releaseWakesWaiter() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(t.acquired());
+
+    bp.unsafeReleasePage(tid1, p0);
+    t.join(TIMEOUT);
+    assertTrue(t.acquired());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock request queued behind a waiting write lock request should
+   * wait, so that writers are not starved by a stream of readers.
+   */
+  @Test public void readerQueuesBehindWriter() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    grabLock(tid3, p0, Permissions.READ_ONLY, false);
+    assertFalse(writer.acquired());
+    writer.stop();
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * An upgrade blocked by another reader should wait rather than abort, and
+   * be granted ahead of a writer that queued before it once the reader is
+   * gone.
+   */
+  @Test public void upgradeWaitsForReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+
+    TestUtil.LockGrabber upgrade = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    upgrade.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(upgrade.acquired());
+    assertNull(upgrade.getError());
+
+    bp.unsafeReleasePage(tid2, p0);
+    upgrade.join(TIMEOUT);
+    assertTrue(upgrade.acquired());
+    assertFalse(writer.acquired());
+    writer.stop();
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Past the escalation threshold, a reader locks the whole table, which
+   * covers pages it never read and keeps writers out of them.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    bp.setEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, p2));
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.unsafeReleasePage(): a released page no
+   * longer counts towards the escalation threshold.
+   */
+  @Test public void releaseBeforeEscalation() throws Exception {
+    bp.setEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.unsafeReleasePage(tid1, p0);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_WRITE, true);
+  }
+
   /**
    * JUnit suite target
    */
@@ -222,6 +222,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page decodePage(PageId id, byte[] data) {
+            throw new RuntimeException("not implemented");
+        }
+
         public List<Page> insertTuple(TransactionId tid, Tuple t) {
             throw new RuntimeException("not implemented");
         }
@@ -245,6 +249,9 @@ public class TestUtil {
 		public TupleDesc getTupleDesc() {			
 			return td;
 		}
+
+		public void close() {
+		}
     }
 
     /**
@@ -0,0 +1,29 @@
+package com.simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Gives the tests in other packages access to package-private internals of
+ * the log.
+ */
+public class LogInternals {
+
+    private LogInternals() {
+    }
+
+    /** Returns the number of times log has been forced to disk. */
+    public static long forceCount(LogFile log) {
+        return log.getForceCount();
+    }
+
+    /** Returns the segment file of log that holds the byte at lsn. */
+    public static File segmentFile(LogFile log, long lsn) throws IOException {
+        return log.getSegments().fileAt(lsn);
+    }
+
+    /** Returns where the byte at lsn lies in its segment file. */
+    public static long segmentPosition(LogFile log, long lsn) throws IOException {
+        return log.getSegments().positionAt(lsn);
+    }
+}
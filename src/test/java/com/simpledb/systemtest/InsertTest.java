@@ -19,6 +19,11 @@ import com.simpledb.transaction.TransactionId;
 public class InsertTest extends SimpleDbTestBase {
     private void validateInsert(int columns, int sourceRows, int destinationRows)
                 throws DbException, IOException, TransactionAbortedException {
+        validateInsert(columns, sourceRows, destinationRows, 1);
+    }
+
+    private void validateInsert(int columns, int sourceRows, int destinationRows, int batchSize)
+                throws DbException, IOException, TransactionAbortedException {
         // Create the two tables
         List<List<Integer>> sourceTuples = new ArrayList<>();
         HeapFile source = SystemTestUtil.createRandomHeapFile(
@@ -32,7 +37,7 @@ public class InsertTest extends SimpleDbTestBase {
         // Insert source into destination
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, source.getId(), "");
-        Insert insOp = new Insert(tid, ss, destination.getId());
+        Insert insOp = new Insert(tid, ss, destination.getId(), batchSize);
 
 //        Query q = new Query(insOp, tid);
         insOp.open();
@@ -77,6 +82,12 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testBatchedManyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // fills the partial last page, then appends whole new pages
+        validateInsert(2, 5000, 700, 1000);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
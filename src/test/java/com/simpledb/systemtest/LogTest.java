@@ -6,6 +6,8 @@ import com.simpledb.common.Permissions;
 import com.simpledb.common.Utility;
 import com.simpledb.execution.Insert;
 import com.simpledb.execution.SeqScan;
+import com.simpledb.index.BTreeFile;
+import com.simpledb.index.BTreeUtility;
 import com.simpledb.storage.*;
 import com.simpledb.transaction.Transaction;
 import com.simpledb.transaction.TransactionAbortedException;
@@ -13,11 +15,19 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test logging, aborts, and recovery.
@@ -120,6 +130,15 @@ public class LogTest extends SimpleDbTestBase {
         Database.getLogFile().recover();
     }
 
+    // open the log segment holding lsn, positioned at it
+    RandomAccessFile openLogAt(long lsn)
+            throws IOException {
+        File segmentFile = LogInternals.segmentFile(Database.getLogFile(), lsn);
+        RandomAccessFile segment = new RandomAccessFile(segmentFile, "rw");
+        segment.seek(LogInternals.segmentPosition(Database.getLogFile(), lsn));
+        return segment;
+    }
+
     // create an initial database with two empty tables
     // does *not* initiate log file recovery
     void setup()
@@ -200,6 +219,396 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestDeltaRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a single tuple insert logs a delta, not two page images
+        Transaction t1 = new Transaction();
+        t1.start();
+        long before = Database.getLogFile().getEndLsn();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        long logged = Database.getLogFile().getEndLsn() - before;
+        if (logged >= BufferPool.getPageSize())
+            throw new RuntimeException("LogTest: " + logged + " bytes logged for one tuple");
+        t1.commit();
+
+        // and it is redone and undone like a full image
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestRedoAfterSteal()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts 3, the page is stolen, a checkpoint is taken, and T1
+        // deletes 3 again and commits. The commit's page write is lost, so
+        // redo must undo the stolen insert that T1's last record of the
+        // page no longer covers.
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        byte[] stolen = Files.readAllBytes(file1.toPath());
+        Database.getLogFile().logCheckpoint();
+
+        SeqScan scan = new SeqScan(t1.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == 3)
+                Database.getBufferPool().deleteTuple(t1.getId(), tu);
+        }
+        scan.close();
+        t1.commit();
+        Files.write(file1.toPath(), stolen);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestRecoverManyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // redo spreads the pages of both tables over its workers, and undo
+        // still removes what the open transaction flushed to each of them
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1200; i++) {
+            insertRow(i % 2 == 0 ? hf1 : hf2, t1, i);
+        }
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 5000);
+        insertRow(hf2, t2, 5001);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 0, true);
+        look(hf2, t, 1, true);
+        look(hf1, t, 1198, true);
+        look(hf2, t, 1199, true);
+        look(hf1, t, 5000, false);
+        look(hf2, t, 5001, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint writes no pages, so an open transaction's change
+        // stays in the buffer pool only
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getLogFile().logCheckpoint();
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(502, onDisk.getNumEmptySlots());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 4);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestCheckpointDuringAppend()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        byte[] empty = Files.readAllBytes(file1.toPath());
+
+        // *** Test:
+        // T1 bulk-inserts into the table, filling its cached first page and
+        // appending the rest to the file directly. A checkpoint is taken
+        // after the appended pages' records are forced but before the pages
+        // are written, and the crash loses the write, so redo must still
+        // replay them.
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().getPage(t1.getId(), new HeapPageId(hf1.getId(), 0), Permissions.READ_WRITE);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            Tuple tu = new Tuple(Utility.getTupleDesc(2));
+            tu.setField(0, new IntField(i));
+            tu.setField(1, new IntField(0));
+            tuples.add(tu);
+        }
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread inserter = new Thread(() -> {
+            try {
+                Database.getBufferPool().insertTuples(t1.getId(), hf1.getId(), tuples);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        // the write reopens the closed channel under its monitor
+        PageFileChannel channel = hf1.getChannel();
+        channel.close();
+        synchronized (channel) {
+            inserter.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (inserter.getState() != Thread.State.BLOCKED && inserter.isAlive()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Thread.State.BLOCKED, inserter.getState());
+            Database.getLogFile().logCheckpoint();
+        }
+        inserter.join(10000);
+        assertNull(failure.get());
+        t1.commit();
+        Files.write(file1.toPath(), empty);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 0, true);
+        look(hf1, t, 600, true);
+        look(hf1, t, 1199, true);
+        t.commit();
+    }
+
+    @Test public void TestLogSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setSegmentSize(1024);
+
+        // *** Test:
+        // the log spreads over segments, with records crossing their
+        // boundaries, and a checkpoint frees the segments before it
+        for (int i = 0; i < 40; i++) {
+            doInsert(hf1, i, -1);
+        }
+        int before = Database.getLogFile().getNumSegments();
+        assertTrue(before > 1);
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getNumSegments() < before);
+
+        // appends reuse the freed segments, and recovery reads across them
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 100);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 40; i < 60; i++) {
+            doInsert(hf1, i, -1);
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 60; i++) {
+            look(hf1, t, i, true);
+        }
+        look(hf2, t, 100, false);
+        t.commit();
+    }
+
+    @Test public void TestBTreeAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        File file3 = new File("simple3.db");
+        file3.delete();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file3.getAbsolutePath(), 2, 0);
+
+        // *** Test:
+        // rollback reads the images of B+ tree root pointer, leaf and
+        // internal pages back from the log
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        abort(t1);
+
+        // the tree is empty again, with a null root pointer
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(5000, 2));
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        assertEquals(5000, ((IntField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+        it.close();
+        t.commit();
+        file3.delete();
+    }
+
+    @Test public void TestTornCommit()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a commit record damaged by the crash ends the log, so its
+        // transaction is rolled back
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        long commitStart = Database.getLogFile().getEndLsn();
+        t1.commit();
+        // flip a bit of the record's transaction id, which follows its
+        // type and length
+        try (RandomAccessFile segment = openLogAt(commitStart + 8)) {
+            int b = segment.read();
+            segment.seek(segment.getFilePointer() - 1);
+            segment.write(b ^ 1);
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        // the log goes on from where the damaged record began
+        doInsert(hf1, 4, -1);
+        crash();
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestTornLength()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a commit record whose length runs past the end of the log ends
+        // the log, without recovery allocating a buffer of that length
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        long commitStart = Database.getLogFile().getEndLsn();
+        t1.commit();
+        // the length follows the record's type
+        try (RandomAccessFile segment = openLogAt(commitStart + 4)) {
+            segment.writeInt(Integer.MAX_VALUE);
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommitCrash()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().setGroupCommit(1000, 4);
+
+        // *** Test:
+        // concurrent commits share forces, but each is durable on return
+        Transaction[] updaters = new Transaction[2];
+        for (int i = 0; i < updaters.length; i++) {
+            updaters[i] = new Transaction();
+            updaters[i].start();
+            insertRow(i == 0 ? hf1 : hf2, updaters[i], 3 + i);
+        }
+        final int COMMITS = 10;
+        Thread[] threads = new Thread[4];
+        CyclicBarrier start = new CyclicBarrier(threads.length);
+        Exception[] failed = new Exception[1];
+        for (int i = 0; i < threads.length; i++) {
+            final Transaction updater = i < updaters.length ? updaters[i] : null;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < COMMITS; j++) {
+                        Transaction t = updater;
+                        if (t == null || j > 0) {
+                            t = new Transaction();
+                            t.start();
+                        }
+                        t.commit();
+                    }
+                } catch (Exception e) {
+                    failed[0] = e;
+                }
+            });
+        }
+        long forces = LogInternals.forceCount(Database.getLogFile());
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failed[0] != null)
+            throw new RuntimeException(failed[0]);
+        assertEquals(Database.getLogFile().getEndLsn(), Database.getLogFile().getFlushedLsn());
+        forces = LogInternals.forceCount(Database.getLogFile()) - forces;
+        assertTrue("forced " + forces + " times for " + threads.length * COMMITS + " commits",
+                forces < threads.length * COMMITS);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf2, t, 4, true);
+        t.commit();
+    }
+
     @Test public void TestAbort()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -254,6 +663,55 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortLiveInterleaved()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 21, 22);
+
+        // *** Test:
+        // T1 and T2 update interleaved, with their pages stolen in between,
+        // then T1 aborts while T2 is still active: only T1's pages are
+        // rolled back, and T2 commits its changes
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t1, 3);
+        insertRow(hf2, t2, 23);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t1, 4);
+        insertRow(hf2, t2, 24);
+        Database.getBufferPool().flushAllPages();
+        abort(t1);
+
+        look(hf2, t2, 23, true);
+        look(hf2, t2, 24, true);
+        t2.commit();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, true);
+        look(hf2, t, 23, true);
+        look(hf2, t, 24, true);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 23, true);
+        look(hf2, t, 24, true);
+        t.commit();
+    }
+
     @Test public void TestAbortCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -12,6 +12,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -109,6 +110,119 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a sequential scan with read-ahead enabled returns the
+     * same tuples and reads each page from disk exactly once. */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                synchronized (this) {
+                    readCount += 1;
+                }
+                return super.readPage(pid);
+            }
+
+            public int readCount = 0;
+        }
+
+        final int PAGES = 30;
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        table.setReadAheadPages(8);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(PAGES, table.readCount);
+    }
+
+    /** Verifies that pages read ahead for a scan that stopped early are
+     * cached like other pages, and do not use up read-ahead for later scans. */
+    @Test public void testReadAheadAbandoned() throws Exception {
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                if (Thread.currentThread().getName().equals("BufferPool-io")) {
+                    synchronized (this) {
+                        aheadCount += 1;
+                    }
+                }
+                return super.readPage(pid);
+            }
+
+            public int aheadCount = 0;
+        }
+
+        final int PAGES = 30;
+        Database.resetBufferPool(10);
+        InstrumentedHeapFile[] tables = new InstrumentedHeapFile[2];
+        for (int i = 0; i < tables.length; i++) {
+            File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, new ArrayList<>());
+            tables[i] = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+            tables[i].setReadAheadPages(16);
+            Database.getCatalog().addTable(tables[i], SystemTestUtil.getUUID());
+        }
+
+        // stop on the second page of the first table, which starts a
+        // read-ahead of more pages than the pool holds
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = tables[0].iterator(tid);
+        it.open();
+        for (int i = 0; i < 992 + 1; i++) {
+            it.next();
+            assertTrue(it.hasNext());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Thread.sleep(200);
+
+        tid = new TransactionId();
+        it = tables[1].iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(tables[0].aheadCount > 0);
+        assertTrue(tables[1].aheadCount > 0);
+    }
+
+    /** Verifies that concurrent scans through a sharded buffer pool all see
+     * every tuple, and that the table fits across the shards. */
+    @Test public void testConcurrentScansShardedPool() throws Exception {
+        final int PAGES = 8;
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*PAGES, 1000, null, tuples);
+        BufferPool pool = Database.resetBufferPool(128);
+        assertEquals(2, pool.getNumShards());
+
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    SystemTestUtil.matchTuples(f, tuples);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */